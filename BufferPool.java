@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of one size, shared by every connection. Direct
+ * buffers are slow to allocate and freed only by the garbage collector, so
+ * each TLS connection borrows its record buffers here and gives them back
+ * when it closes, rather than allocating its own.
+ *
+ * At most max buffers are kept; beyond that, returned buffers are dropped.
+ */
+public class BufferPool {
+    private final int size;
+    private final int max;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int size, int max){
+        this.size = size;
+        this.max = max;
+    }
+
+    /**
+     * the size of every buffer in the pool
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * a cleared buffer, from the pool if one is free
+     */
+    public ByteBuffer take(){
+        ByteBuffer b = free.poll();
+        if(b == null){
+            return ByteBuffer.allocateDirect(size);
+        }
+        pooled.decrementAndGet();
+        b.clear();
+        return b;
+    }
+
+    /**
+     * returns a buffer taken from this pool; it must not be used after this
+     */
+    public void give(ByteBuffer b){
+        if(b == null || b.capacity() != size){return;}
+        if(pooled.incrementAndGet() > max){
+            pooled.decrementAndGet();
+            return;
+        }
+        free.add(b);
+    }
+
+    /**
+     * the number of buffers waiting to be reused
+     */
+    public int free(){
+        return pooled.get();
+    }
+}
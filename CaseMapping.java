@@ -0,0 +1,58 @@
+/**
+ * The IRC rules for which nicks and channel names count as the same, as
+ * given by the server's CASEMAPPING token in its 005 (ISUPPORT) reply.
+ * Under rfc1459, the default, "[]\~" are the upper case forms of "{}|^".
+ */
+public enum CaseMapping {
+    ASCII('Z'),
+    STRICT_RFC1459(']'),
+    RFC1459('^');
+
+    private final char lastUpper; // every char from 'A' up to this one has a lower case form
+
+    CaseMapping(char lastUpper){
+        this.lastUpper = lastUpper;
+    }
+
+    /**
+     * the mapping for a CASEMAPPING value, rfc1459 if it is not known
+     */
+    public static CaseMapping forName(String name){
+        if("ascii".equalsIgnoreCase(name)){return ASCII;}
+        if("strict-rfc1459".equalsIgnoreCase(name)){return STRICT_RFC1459;}
+        return RFC1459;
+    }
+
+    /**
+     * the lower case form of a single char
+     */
+    public char fold(char c){
+        return (c >= 'A' && c <= lastUpper) ? (char)(c + 32) : c;
+    }
+
+    /**
+     * The lower case form of s, for use as a map key. A String that is
+     * already lower case is returned as it is, without making a new one.
+     */
+    public String fold(CharSequence s){
+        int len = s.length();
+        int i = 0;
+        while(i < len && fold(s.charAt(i)) == s.charAt(i)){i++;}
+        if(i == len){return s.toString();}
+        char[] folded = new char[len];
+        for(int j = 0; j < len; j++){folded[j] = fold(s.charAt(j));}
+        return new String(folded);
+    }
+
+    /**
+     * whether a and b name the same nick or channel
+     */
+    public boolean equals(CharSequence a, CharSequence b){
+        int len = a.length();
+        if(b.length() != len){return false;}
+        for(int i = 0; i < len; i++){
+            if(fold(a.charAt(i)) != fold(b.charAt(i))){return false;}
+        }
+        return true;
+    }
+}
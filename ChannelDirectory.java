@@ -0,0 +1,351 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The server's channel list, collected from LIST replies (321 start, 322 one
+ * channel, 323 end) as they stream in, into columns: one array each of
+ * names, user counts and topics, rather than an object per channel.
+ *
+ * A finished list is kept for REFRESH_MILLIS, and requests in that time are
+ * answered from it without asking the server again. When the server
+ * supports ELIST user-count filters (005 ELIST=...U...), a request for
+ * channels within user bounds is filtered by the server, so fewer lines are
+ * sent; otherwise it is filtered here.
+ *
+ * A LIST the server refuses (263 try again, 481 not allowed, or another
+ * error naming LIST), or that gets no answer within LIST_TIMEOUT_MILLIS,
+ * answers the requests waiting for it with null, so the next request asks
+ * again.
+ *
+ * Thread safe: replies come in on the event loop, requests from the UI.
+ */
+public class ChannelDirectory {
+    public static final long REFRESH_MILLIS = 5 * 60 * 1000; // how long a list is reused
+    public static final long LIST_TIMEOUT_MILLIS = 60 * 1000; // how long to wait for a LIST to start
+    public static final int BY_NAME = 0, BY_USERS = 1, BY_TOPIC = 2;
+
+    private final IrcSession session;
+    private boolean userFilter = false; // server supports LIST >n,<n
+    private Listing cached = null;
+    private int cachedMin = 0, cachedMax = Integer.MAX_VALUE; // the bounds the cached list was asked with
+    private long cachedAt;
+    private Builder building = null;     // the list coming in, if any
+    private final Deque<int[]> asked = new ArrayDeque<int[]>(); // bounds of each LIST sent, oldest first
+    private long heardAt;                // when the last LIST was sent or a reply to it came
+    private final List<Request> waiting = new ArrayList<Request>();
+
+    public ChannelDirectory(IrcSession session){
+        this.session = session;
+    }
+
+    /**
+     * a request waiting for the list to come in
+     */
+    private static class Request {
+        final int min, max;
+        final Consumer<Listing> then;
+
+        Request(int min, int max, Consumer<Listing> then){
+            this.min = min;
+            this.max = max;
+            this.then = then;
+        }
+    }
+
+    /**
+     * reads ELIST from a 005 token
+     */
+    public synchronized void supports(String token){
+        if(token.startsWith("ELIST=")){
+            userFilter = token.indexOf('U', "ELIST=".length()) >= 0;
+        }
+    }
+
+    /**
+     * Calls then with the channels having between min and max users
+     * (inclusive): at once from the cached list if it is recent enough and
+     * covers those bounds, otherwise once a LIST has come back. A refresh
+     * always asks the server. then is given null if the server won't list
+     * its channels.
+     */
+    public void request(int min, int max, boolean refresh, Consumer<Listing> then){
+        Listing answer = null;
+        String line = null;
+        List<Request> expired = Collections.emptyList();
+        synchronized(this){
+            if(!asked.isEmpty() && System.currentTimeMillis() - heardAt > LIST_TIMEOUT_MILLIS){
+                expired = abandon(); // the server never answered; ask again
+            }
+            boolean fresh = cached != null && System.currentTimeMillis() - cachedAt < REFRESH_MILLIS;
+            if(!refresh && fresh && cachedMin <= min && cachedMax >= max){
+                answer = cached.filter(min, max);
+            }else{
+                waiting.add(new Request(min, max, then));
+                if(!coming(min, max)){
+                    int[] bounds = userFilter ? new int[]{min, max} : new int[]{0, Integer.MAX_VALUE};
+                    asked.add(bounds);
+                    heardAt = System.currentTimeMillis();
+                    line = listCommand(bounds[0], bounds[1]);
+                }
+            }
+        }
+        for(Request r : expired){
+            r.then.accept(null);
+        }
+        if(answer != null){
+            then.accept(answer);
+        }else if(line != null){
+            session.send(line);
+        }
+    }
+
+    /**
+     * true if a LIST already on its way will cover the bounds
+     */
+    private boolean coming(int min, int max){
+        for(int[] bounds : asked){
+            if(bounds[0] <= min && bounds[1] >= max){return true;}
+        }
+        return false;
+    }
+
+    /**
+     * LIST, with an ELIST user count filter (>n exclusive, <n exclusive)
+     * for any bounds
+     */
+    private static String listCommand(int min, int max){
+        List<String> filters = new ArrayList<String>(2);
+        if(min > 0){filters.add(">" + (min - 1));}
+        if(max < Integer.MAX_VALUE){filters.add("<" + (max + 1));}
+        return filters.isEmpty() ? "LIST" : "LIST " + String.join(",", filters);
+    }
+
+    /**
+     * the last list collected (null if none), however old
+     */
+    public synchronized Listing cached(){
+        return cached;
+    }
+
+    /**
+     * 321: a list is starting
+     */
+    public synchronized void listStart(){
+        building = new Builder();
+        heardAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 322: "me #channel users :topic"
+     */
+    public synchronized void listed(IrcMessage msg){
+        if(msg.paramCount() < 3){return;}
+        if(building == null){building = new Builder();} // not all servers send 321
+        heardAt = System.currentTimeMillis();
+        int users;
+        try{
+            users = Integer.parseInt(msg.param(2));
+        }catch(NumberFormatException e){
+            users = 0;
+        }
+        building.add(msg.param(1), users, msg.paramCount() > 3 ? msg.last() : "");
+    }
+
+    /**
+     * 323: the list is complete; answers the requests waiting for it
+     */
+    public void listEnd(){
+        List<Request> answered = new ArrayList<Request>();
+        Listing list;
+        synchronized(this){
+            list = (building == null ? new Builder() : building).build();
+            building = null;
+            int[] bounds = asked.poll();
+            if(bounds == null){bounds = new int[]{0, Integer.MAX_VALUE};} // a LIST we did not send
+            cached = list;
+            cachedMin = bounds[0];
+            cachedMax = bounds[1];
+            cachedAt = System.currentTimeMillis();
+            for(Iterator<Request> it = waiting.iterator(); it.hasNext();){
+                Request r = it.next();
+                if(cachedMin <= r.min && cachedMax >= r.max){
+                    answered.add(r);
+                    it.remove();
+                }
+            }
+        }
+        for(Request r : answered){
+            r.then.accept(list.filter(r.min, r.max));
+        }
+    }
+
+    /**
+     * the server refused a LIST (263, 481, or an error reply about LIST):
+     * answers every request waiting with null, and forgets the LISTs sent
+     */
+    public void listFailed(){
+        List<Request> failed;
+        synchronized(this){
+            failed = abandon();
+        }
+        for(Request r : failed){
+            r.then.accept(null);
+        }
+    }
+
+    /**
+     * gives up on the LISTs sent, returning the requests that were waiting
+     */
+    private List<Request> abandon(){
+        List<Request> failed = new ArrayList<Request>(waiting);
+        building = null;
+        asked.clear();
+        waiting.clear();
+        return failed;
+    }
+
+    public synchronized void clear(){
+        cached = null;
+        building = null;
+        asked.clear();
+        waiting.clear();
+    }
+
+    /**
+     * collects the columns as the replies come in
+     */
+    private static class Builder {
+        String[] names = new String[256];
+        int[] users = new int[256];
+        String[] topics = new String[256];
+        int size = 0;
+
+        void add(String name, int count, String topic){
+            if(size == names.length){
+                names = Arrays.copyOf(names, size * 2);
+                users = Arrays.copyOf(users, size * 2);
+                topics = Arrays.copyOf(topics, size * 2);
+            }
+            names[size] = name;
+            users[size] = count;
+            topics[size] = topic;
+            size++;
+        }
+
+        Listing build(){
+            return new Listing(Arrays.copyOf(names, size), Arrays.copyOf(users, size), Arrays.copyOf(topics, size));
+        }
+    }
+
+    /**
+     * A finished channel list (read only). Filtering and searching give a
+     * smaller list; sorting gives row numbers, so the columns are never
+     * copied just to change the order.
+     */
+    public static class Listing {
+        private final String[] names;
+        private final int[] users;
+        private final String[] topics;
+
+        Listing(String[] names, int[] users, String[] topics){
+            this.names = names;
+            this.users = users;
+            this.topics = topics;
+        }
+
+        public int size(){
+            return names.length;
+        }
+
+        public String name(int row){
+            return names[row];
+        }
+
+        public int users(int row){
+            return users[row];
+        }
+
+        public String topic(int row){
+            return topics[row];
+        }
+
+        /**
+         * the channels with between min and max users
+         */
+        public Listing filter(int min, int max){
+            boolean[] keep = new boolean[users.length];
+            for(int i = 0; i < users.length; i++){
+                keep[i] = users[i] >= min && users[i] <= max;
+            }
+            return select(keep);
+        }
+
+        /**
+         * the channels whose name or topic contains the text (ignoring case)
+         */
+        public Listing search(String text){
+            boolean[] keep = new boolean[names.length];
+            for(int i = 0; i < names.length; i++){
+                keep[i] = contains(names[i], text) || contains(topics[i], text);
+            }
+            return select(keep);
+        }
+
+        private Listing select(boolean[] keep){
+            int n = 0;
+            for(boolean k : keep){
+                if(k){n++;}
+            }
+            if(n == keep.length){return this;}
+            String[] fn = new String[n];
+            int[] fu = new int[n];
+            String[] ft = new String[n];
+            int j = 0;
+            for(int i = 0; i < keep.length; i++){
+                if(keep[i]){
+                    fn[j] = names[i];
+                    fu[j] = users[i];
+                    ft[j] = topics[i];
+                    j++;
+                }
+            }
+            return new Listing(fn, fu, ft);
+        }
+
+        /**
+         * the row numbers ordered by the column (BY_NAME, BY_USERS or BY_TOPIC)
+         */
+        public int[] sorted(int by, boolean descending){
+            int n = names.length;
+            int[] rows = new int[n];
+            if(by == BY_USERS){ // sort user count and row packed into longs: no boxing
+                long[] keys = new long[n];
+                for(int i = 0; i < n; i++){keys[i] = ((long)users[i] << 32) | i;}
+                Arrays.sort(keys);
+                for(int i = 0; i < n; i++){rows[i] = (int)keys[i];}
+            }else{
+                String[] column = by == BY_TOPIC ? topics : names;
+                Integer[] boxed = new Integer[n];
+                for(int i = 0; i < n; i++){boxed[i] = i;}
+                Arrays.sort(boxed, (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(column[a], column[b]));
+                for(int i = 0; i < n; i++){rows[i] = boxed[i];}
+            }
+            if(descending){
+                for(int i = 0, j = n - 1; i < j; i++, j--){
+                    int t = rows[i];
+                    rows[i] = rows[j];
+                    rows[j] = t;
+                }
+            }
+            return rows;
+        }
+
+        private static boolean contains(String s, String text){
+            int last = s.length() - text.length();
+            for(int i = 0; i <= last; i++){
+                if(s.regionMatches(true, i, text, 0, text.length())){return true;}
+            }
+            return false;
+        }
+    }
+}
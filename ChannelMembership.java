@@ -0,0 +1,384 @@
+import java.util.*;
+
+/**
+ * Who is in each of a session's channels, and their channel modes (op,
+ * voice and so on), kept up to date from NAMES (353), JOIN, PART, KICK,
+ * QUIT, NICK and MODE so member lists and counts never need a request to
+ * the server.
+ *
+ * Each nick is held once, in a Nick shared by every channel it is in, so a
+ * rename is one change however many channels see it and a nick in many
+ * channels costs one string. Each channel is an open-addressed set of Nicks
+ * with a parallel byte array of mode bits: a few bytes per member, and
+ * adding or removing a member of a 10k user channel is O(1).
+ *
+ * Thread safe: updated on the event loop, read from the UI.
+ */
+public class ChannelMembership {
+    private CaseMapping caseMapping = CaseMapping.RFC1459;
+    private String prefixModes = "ov";       // modes that give a prefix, highest first (005 PREFIX)
+    private String prefixSymbols = "@+";
+    private String paramModes = "beIkl";    // other modes that take a parameter when set (005 CHANMODES)
+    private String unsetParamModes = "beIk"; // and those that take one when unset
+    private final Map<String, Nick> nicks = new HashMap<String, Nick>();       // by folded nick
+    private final Map<String, Members> channels = new HashMap<String, Members>(); // by folded name
+    private int nextHash = 0;
+
+    /**
+     * one nick, shared by every channel it is in
+     */
+    private static class Nick {
+        String name;
+        final int hash;
+        int channels = 0; // how many channels hold it; dropped at 0
+        boolean away = false;
+
+        Nick(String name, int hash){
+            this.name = name;
+            this.hash = hash;
+        }
+    }
+
+    public synchronized void setCaseMapping(CaseMapping cm){
+        if(cm == caseMapping){return;}
+        caseMapping = cm;
+        Map<String, Nick> n = new HashMap<String, Nick>(nicks);
+        nicks.clear();
+        for(Nick nick : n.values()){nicks.put(cm.fold(nick.name), nick);}
+        Map<String, Members> c = new HashMap<String, Members>(channels);
+        channels.clear();
+        for(Members m : c.values()){channels.put(cm.fold(m.name), m);}
+    }
+
+    /**
+     * Reads PREFIX=(ov)@+ and CHANMODES=A,B,C,D from a 005 token, so MODE
+     * lines are read the way the server means them.
+     */
+    public synchronized void supports(String token){
+        if(token.startsWith("PREFIX=(")){
+            int close = token.indexOf(')');
+            if(close < 0){return;}
+            String modes = token.substring("PREFIX=(".length(), close);
+            String symbols = token.substring(close + 1);
+            if(modes.length() == symbols.length() && modes.length() <= 8){ // the mode bits are a byte
+                prefixModes = modes;
+                prefixSymbols = symbols;
+            }
+        }else if(token.startsWith("CHANMODES=")){
+            String[] types = token.substring("CHANMODES=".length()).split(",", -1);
+            if(types.length < 3){return;}
+            paramModes = types[0] + types[1] + types[2];
+            unsetParamModes = types[0] + types[1];
+        }
+    }
+
+    /**
+     * we have joined the channel: start an empty member list for it
+     */
+    public synchronized void joined(String channel){
+        String key = caseMapping.fold(channel);
+        if(!channels.containsKey(key)){
+            channels.put(key, new Members(channel));
+        }
+    }
+
+    /**
+     * we have left the channel (or been kicked): forget its members
+     */
+    public synchronized void left(String channel){
+        Members m = channels.remove(caseMapping.fold(channel));
+        if(m == null){return;}
+        for(int i = 0; i < m.table.length; i++){
+            if(m.table[i] != null){release(m.table[i]);}
+        }
+    }
+
+    public synchronized void join(String channel, String nick){
+        Members m = channels.get(caseMapping.fold(channel));
+        if(m != null){add(m, nick, 0);}
+    }
+
+    public synchronized void part(String channel, String nick){
+        Members m = channels.get(caseMapping.fold(channel));
+        Nick n = nicks.get(caseMapping.fold(nick));
+        if(m != null && n != null && m.remove(n)){release(n);}
+    }
+
+    /**
+     * the nick has left the server: takes it out of every channel
+     */
+    public synchronized void quit(String nick){
+        Nick n = nicks.get(caseMapping.fold(nick));
+        if(n == null){return;}
+        for(Members m : channels.values()){
+            if(m.remove(n)){release(n);}
+        }
+    }
+
+    /**
+     * the nick is now known as another: every channel sees the new name
+     */
+    public synchronized void rename(String from, String to){
+        Nick n = nicks.remove(caseMapping.fold(from));
+        if(n == null){return;}
+        n.name = to;
+        nicks.put(caseMapping.fold(to), n);
+    }
+
+    /**
+     * the nick has gone away or come back (away-notify)
+     */
+    public synchronized void away(String nick, boolean away){
+        Nick n = nicks.get(caseMapping.fold(nick));
+        if(n != null){n.away = away;}
+    }
+
+    /**
+     * true if the nick shares a channel with us and is marked away
+     */
+    public synchronized boolean isAway(String nick){
+        Nick n = nicks.get(caseMapping.fold(nick));
+        return n != null && n.away;
+    }
+
+    /**
+     * Adds the members from a NAMES reply (353): "= #channel :@op +voice nick".
+     * Every prefix on a name is kept (several with multi-prefix), and a
+     * nick!user@host name is cut down to the nick.
+     */
+    public synchronized void names(IrcMessage msg){
+        addNames(msg);
+    }
+
+    /**
+     * Adds the members from every NAMES reply (353) in a batch in one go,
+     * taking the lock once rather than once a line. msg is reused to parse
+     * each line.
+     */
+    public synchronized void names(IrcBatch b, IrcMessage msg){
+        b.forEach(msg, m -> {
+            if(m.numeric() == 353){addNames(m);}
+        });
+    }
+
+    private void addNames(IrcMessage msg){
+        if(msg.paramCount() < 3){return;}
+        Members m = channels.get(caseMapping.fold(msg.param(msg.paramCount() - 2)));
+        if(m == null){return;} // not one of ours
+        String names = msg.last();
+        int i = 0;
+        while(i < names.length()){
+            int end = names.indexOf(' ', i);
+            if(end < 0){end = names.length();}
+            int start = i;
+            int modes = 0;
+            int p;
+            while(start < end && (p = prefixSymbols.indexOf(names.charAt(start))) >= 0){
+                modes |= 1 << p;
+                start++;
+            }
+            int bang = names.indexOf('!', start);
+            int nickEnd = bang < 0 || bang > end ? end : bang;
+            if(start < nickEnd){
+                add(m, names.substring(start, nickEnd), modes);
+            }
+            i = end + 1;
+        }
+    }
+
+    /**
+     * Applies a channel MODE line's prefix modes (+o nick, -v nick...),
+     * skipping the parameters of the other modes.
+     */
+    public synchronized void mode(IrcMessage msg){
+        if(msg.paramCount() < 2){return;}
+        Members m = channels.get(caseMapping.fold(msg.param(0)));
+        if(m == null){return;}
+        String changes = msg.param(1);
+        int arg = 2;
+        boolean adding = true;
+        for(int i = 0; i < changes.length(); i++){
+            char c = changes.charAt(i);
+            if(c == '+' || c == '-'){
+                adding = c == '+';
+                continue;
+            }
+            int p = prefixModes.indexOf(c);
+            if(p >= 0){
+                if(arg >= msg.paramCount()){return;}
+                Nick n = nicks.get(caseMapping.fold(msg.param(arg++)));
+                if(n != null){m.setMode(n, 1 << p, adding);}
+            }else if((adding ? paramModes : unsetParamModes).indexOf(c) >= 0){
+                arg++;
+            }
+        }
+    }
+
+    /**
+     * the number of members of the channel, or -1 if we are not in it
+     */
+    public synchronized int count(String channel){
+        Members m = channels.get(caseMapping.fold(channel));
+        return m == null ? -1 : m.size;
+    }
+
+    /**
+     * the members of the channel, each with its highest prefix ("@nick"),
+     * highest first and then by name; empty if we are not in it
+     */
+    public synchronized List<String> members(String channel){
+        Members m = channels.get(caseMapping.fold(channel));
+        if(m == null){return Collections.emptyList();}
+        List<String> list = new ArrayList<String>(m.size);
+        for(int rank = 0; rank <= prefixSymbols.length(); rank++){
+            int from = list.size();
+            for(int i = 0; i < m.table.length; i++){
+                if(m.table[i] != null && rankOf(m.modes[i]) == rank){
+                    list.add(rank < prefixSymbols.length() ? prefixSymbols.charAt(rank) + m.table[i].name : m.table[i].name);
+                }
+            }
+            Collections.sort(list.subList(from, list.size()), String.CASE_INSENSITIVE_ORDER);
+        }
+        return list;
+    }
+
+    /**
+     * the rank symbols the server puts before nicks in NAMES replies,
+     * highest first (from its 005 PREFIX, "@+" until it says)
+     */
+    public synchronized String prefixSymbols(){
+        return prefixSymbols;
+    }
+
+    /**
+     * the highest prefix the nick has in the channel ("" if none), or null
+     * if it is not a member
+     */
+    public synchronized String prefix(String channel, String nick){
+        Members m = channels.get(caseMapping.fold(channel));
+        Nick n = nicks.get(caseMapping.fold(nick));
+        if(m == null || n == null){return null;}
+        int i = m.indexOf(n);
+        if(i < 0){return null;}
+        int rank = rankOf(m.modes[i]);
+        return rank < prefixSymbols.length() ? String.valueOf(prefixSymbols.charAt(rank)) : "";
+    }
+
+    public synchronized void clear(){
+        nicks.clear();
+        channels.clear();
+    }
+
+    /**
+     * the index of the highest prefix in the mode bits, or the number of
+     * prefixes if there are none
+     */
+    private int rankOf(byte modes){
+        return modes == 0 ? prefixSymbols.length() : Integer.numberOfTrailingZeros(modes);
+    }
+
+    private void add(Members m, String name, int modes){
+        String key = caseMapping.fold(name);
+        Nick n = nicks.get(key);
+        if(n == null){
+            n = new Nick(name, (nextHash++) * 0x9E3779B9); // spread evenly over the tables
+            nicks.put(key, n);
+        }
+        if(m.add(n, modes)){n.channels++;}
+    }
+
+    private void release(Nick n){
+        if(--n.channels == 0){
+            nicks.remove(caseMapping.fold(n.name));
+        }
+    }
+
+    /**
+     * One channel's members: an open-addressed (linear probing) set of
+     * Nicks, by identity, with each member's mode bits alongside.
+     */
+    private static class Members {
+        final String name;
+        Nick[] table = new Nick[8];
+        byte[] modes = new byte[8];
+        int size = 0;
+
+        Members(String name){
+            this.name = name;
+        }
+
+        int indexOf(Nick n){
+            int mask = table.length - 1;
+            for(int i = n.hash & mask; table[i] != null; i = (i + 1) & mask){
+                if(table[i] == n){return i;}
+            }
+            return -1;
+        }
+
+        /**
+         * adds the nick, or adds to its modes if it is already here;
+         * true if it was added
+         */
+        boolean add(Nick n, int bits){
+            int mask = table.length - 1;
+            int i = n.hash & mask;
+            for(; table[i] != null; i = (i + 1) & mask){
+                if(table[i] == n){
+                    modes[i] |= bits;
+                    return false;
+                }
+            }
+            table[i] = n;
+            modes[i] = (byte)bits;
+            if(++size * 2 > table.length){grow();}
+            return true;
+        }
+
+        void setMode(Nick n, int bit, boolean on){
+            int i = indexOf(n);
+            if(i < 0){return;}
+            modes[i] = (byte)(on ? modes[i] | bit : modes[i] & ~bit);
+        }
+
+        /**
+         * removes the nick, shifting back the entries after it so no
+         * tombstones are needed; true if it was here
+         */
+        boolean remove(Nick n){
+            int i = indexOf(n);
+            if(i < 0){return false;}
+            int mask = table.length - 1;
+            int j = i;
+            while(true){
+                j = (j + 1) & mask;
+                if(table[j] == null){break;}
+                int home = table[j].hash & mask;
+                if(((j - home) & mask) >= ((j - i) & mask)){ // table[j] may move back to i
+                    table[i] = table[j];
+                    modes[i] = modes[j];
+                    i = j;
+                }
+            }
+            table[i] = null;
+            modes[i] = 0;
+            size--;
+            return true;
+        }
+
+        private void grow(){
+            Nick[] oldTable = table;
+            byte[] oldModes = modes;
+            table = new Nick[oldTable.length * 2];
+            modes = new byte[oldTable.length * 2];
+            int mask = table.length - 1;
+            for(int k = 0; k < oldTable.length; k++){
+                Nick n = oldTable[k];
+                if(n == null){continue;}
+                int i = n.hash & mask;
+                while(table[i] != null){i = (i + 1) & mask;}
+                table[i] = n;
+                modes[i] = oldModes[k];
+            }
+        }
+    }
+}
@@ -1,461 +1,610 @@
-
-import ecs100.*;
-import java.io.*;
-import java.net.Socket;
-import java.util.*; 
-
-/**
- * Basic IRC Chat Client 
- */
-
-public class ChatClient {
-    private String server = "irc.ecs.vuw.ac.nz";  // default IRC server for testing.
-    private static final int IRC_PORT = 6667;     // The standard IRC port number.
-    Socket socket = null;
-    Scanner serverIn;
-    PrintStream serverOut;
-    String channel = null;
-    String requestChannel = null;
-    String toSend = null;
-    String targetUser = null;
-    String currentUsername;
-
-    boolean isSendMessage = false; //checks if it is sending a message
-
-    ArrayList<TextWindow> tw = new ArrayList<TextWindow>(); //creates an array of text windows
-    String userMessage;
-
-    /**
-     * main: construct a new ChatClient
-     */
-    public static void main(String[] args) {
-        new ChatClient();
-    }
-
-    /** 
-     * Sets up the user interface.
-     */
-    public ChatClient (){ 
-        UI.addButton("Connect", this::connect);
-        UI.addButton("Disconnect", this::closeConnection);
-        UI.addButton("Show Channels", this::showChannel);
-        UI.addButton("Join a Channel", this::joinChannel);
-        UI.addTextField("Enter Channel Name", this::enterChannelName);
-        UI.addButton("Leave Channel", this::leaveChannel);
-        UI.addButton("Send to Channel", this::sendToChannel);    
-        UI.addButton("Send to User", this::sendToUser);
-        UI.addTextField("Enter Target User", this::enterTargetUser);
-        UI.addTextField("Message Field", this::message);
-        UI.addButton("Show Nicknames", this::showNames);
-        UI.addButton("Show User Count", this::showUsers);
-        UI.addButton("Show Help", this::showHelp);
-        UI.addButton("Show the Message of the Day", this::showMOTD);
-        UI.addButton("Check for Nickname", this::showISON);
-    }
-
-    /**
-     * If there is currently an active socket, it should close the
-     *  connection and set the socket to null.
-     * Creates a socket connected to the server. 
-     * Creates a Scanner on the input stream of the socket, 
-     *  and a PrintStream on the output stream of the socket.
-     * Logs in to the server (calling the loginToServer Message)
-     * Once login is successful, starts a separate thread to
-     *  listen to the server and process the messages from it.
-     */
-    public void connect(){
-        try{
-            if(socket!=null){
-                closeConnection();
-            }
-            socket = new Socket("irc.ecs.vuw.ac.nz", IRC_PORT);
-            serverIn = new Scanner(socket.getInputStream());
-            serverOut = new PrintStream(socket.getOutputStream());
-            if(login()){
-                new Thread(new Runnable(){public void run(){
-                            listenToServer();
-                        }}).start();
-                sendToServer();
-            }
-        }catch(IOException e){
-            System.out.println("Failed connection "+ e);
-        }
-
-    }
-
-    /**
-     * Attempt to log in to the Server and return true if successful, false if not.
-     *  Ask user for username and real name
-     *  Send info to server (NICK command and USER command)
-     *  Read lines from server until get a message containing 004 (success) or
-     *   a message containing 433 (failure - nickname in use)
-     *  (For debugging, at least, print out all lines from the server)
-     */
-    private boolean login(){
-        String username = UI.askToken("Enter your usercode: ");
-        String realname = UI.askString("Enter your real name: ");
-
-        currentUsername = username;
-
-        serverOut.print("NICK " + username + "\r\n");
-        serverOut.print("USER " + username + " 0 unused :" + realname +  "\r\n");
-
-        while(serverIn.hasNext()){
-            String rcvd = serverIn.nextLine();
-            String parsed[] = parseMessage(rcvd);
-            String command = parsed[1];
-            if(command.equals("004")){//successful login message
-                UI.println("Login Successful");
-                return true;
-            }            
-            if(command.equals("433")){//nickname already in use
-                UI.println(parsed[4]);
-                return false;
-            }
-        }
-        UI.println("Login Failed");
-        return false;
-    }
-
-    /**
-     * Send a message to the current server:
-     *  - check that the socket and the serverOut are not null
-     *  - print the message with a \r\n at the end to serverOut
-     *  - flush serverOut (to ensure the message is sent)
-     */
-    private void send(String msg, String target){
-        if(socket != null && serverOut != null && target !=null){
-            serverOut.print("PRIVMSG " + target + " :" + msg + "\r\n");
-            tw.get(checkTextWindow(target)).interact("> " + msg);
-            serverOut.flush();
-        }else{
-            UI.print("No conenction to a server");
-            return;
-        }
-    }
-
-    /**
-     * Method run in the the thread that is listening to the server.
-     * Loop as long as there is anything in the serverIn scanner:
-     *   Get and process the next line of input from the scanner
-     *   Simple version: 
-     *    prints the line out for the user
-     *    Checks if the line contains "SQUIT",
-     *       if so, close the socket, set serverIn and serverOut set the quit the program.
-     *      if the line contains "PING", send a PONG message back
-     *        (must be identical to the line, but with "PING" replaced by "PONG")
-     *   Better version parses the line into source, command, params, finalParam
-     *    (where the source and finalParam are optional, and params may be empty)
-     *    Then deals with the message appropriately.
-     */
-    private void listenToServer() {
-        try{
-            serverIn = new Scanner(socket.getInputStream());
-            if (serverIn != null){
-                while (serverIn.hasNext()){
-                    String rcvd = (serverIn.nextLine());
-                    String parsed[] = parseMessage(rcvd);
-                    String command = "-";
-                    if (parsed.length > 1){ //stops an array out of bounds error, if there is a problem with the message
-                        command = parsed[1];
-                    }
-                    if(command.equals("SQUIT")){//quits from server
-                        closeConnection();
-                    }
-                    else if(command.equals("QUIT")){//shows users quitting out of the server
-                        String un[] = parsed[0].split("!", 2);//cleans up the username
-                        un[0] = un[0].replace(":", "");
-                        UI.println(un[0] + " Left Server");
-                    }
-                    else if(command.equals("PING")){//sends out PONG if it receives a PING
-                        serverOut.print("PONG" + " :" + server + "\r\n");
-                    }
-                    else if(command.equals("MODE")){//receiving the mode message
-                        //do nothing
-                    }
-                    else if(command.equals("PART")){//receiving the mode message
-                        String un[] = parsed[0].split("!", 2);//cleans up the username
-                        un[0] = un[0].replace(":", "");
-                        tw.get(checkTextWindow(channel)).interact(un[0] + " Left Channel: " + parsed[parsed.length - 1]);
-                        if(un[0].equals(currentUsername)){
-                            tw.get(checkTextWindow(channel)).remove();
-                            tw.remove(checkTextWindow(channel));
-                            channel = null;
-                        }
-                    }
-                    else if(command.equals("JOIN")){//receiving the mode message
-                        String un[] = parsed[0].split("!", 2);//cleans up the username
-                        un[0] = un[0].replace(":", "");
-                        tw.get(checkTextWindow(channel)).interact(un[0] + " Joined Channel: " + parsed[parsed.length - 1]);
-                        if(un[0].equals(currentUsername)){//close the channel window
-                            tw.get(checkTextWindow(channel));
-                        }
-                    }
-                    else if(command.equals("PRIVMSG")){//shows a private message
-                        String un[] = parsed[0].split("!", 2);//cleans up the username
-                        un[0] = un[0].replace(":", "");
-                        String target = parsed[2];
-                        String message = parsed[3].replace(":", "");
-                        if(un[0] != null && message != null && tw !=null){
-                            if (target.equals(channel)){// the message is to the channel
-                                tw.get(checkTextWindow(channel)).interact(un[0] + " - " + message);
-                            }else{ //the message is to the user
-                                tw.get(checkTextWindow(un[0])).interact(un[0] + " - " + message);
-                            }
-                        }
-                    }
-                    else if(command.equals("322")){//shows a list of channels
-                        String channel = parsed[3];
-                        String userCount = parsed[4];
-                        UI.println(channel + " has " + userCount + " user(s)");
-                    }
-                    else if(command.equals("321")){//start of list of channels
-                        //do nothing
-                    }
-                    else if(command.equals("323")){//end of list of channels
-                        //do nothing
-                    }
-                    else if(command.equals("353")){//shows all of the nicknames
-                        UI.println("Nicknames on the channel: " + parsed[parsed.length - 1]);
-                    }
-                    else if(command.equals("366")){//end of names list
-                        //do nothing
-                    }
-                    else if(command.equals("303")){//checks the nicknmaes on the server
-                        if(!isSendMessage){//normal operation
-                            if (parsed[parsed.length -1].equals("")){
-                                UI.println("There are no matching nicknames");
-                            }else{
-                                UI.println("That nickname matches one on the server.");
-                            }
-                        }else{//check if user exists to send message
-                            if (parsed[parsed.length -1].equals("")){//if user doesn't exist
-                                UI.println("Nickname doesn't exist on server");
-                            }else{//if user esits - send message
-                                toSend = userMessage;
-                                send(toSend, targetUser);
-                            }
-                            isSendMessage = false;//stops message sending process
-                        }
-                    }
-                    else{//if not specific error type, it prints the extended argument
-                        UI.println(parsed[parsed.length - 1]);
-                    }
-                }
-            }
-        }catch(IOException e){
-            System.out.println("Failed connection "+ e);
-        }
-    }
-
-    /**
-     * Send to server - listens for the user to put in their own inputs
-     */
-    public void sendToServer(){
-        try{
-            serverOut = new PrintStream(socket.getOutputStream());
-        }catch(IOException e){
-            System.out.println("Failed connection "+ e);
-        }
-    }
-
-    /**
-     * count the number of space occurances in the message and then split the
-     * message into its according parameters
-     */
-    public String[] parseMessage(String s){
-        int spaceCount = 0;
-        int colonCount = 0;
-        for(int i = 0; i < s.length(); i++){
-            if (s.charAt(i) == ' '){spaceCount ++;}
-            if (s.charAt(i) == ':'){colonCount ++;}
-            if (colonCount >= 2){ break;}
-        }
-        String[] newString = s.split(" ", spaceCount + 1);
-        newString[newString.length - 1] = newString[newString.length - 1].replace(":", "");
-        return newString;
-    }
-
-    /**
-     * Close the connection:
-     *  - close the socket,
-     *  - set the serverIn and serverOut to null
-     *  - print a message to the user
-     */
-    public void closeConnection(){
-        if(socket != null && serverOut != null){
-            try{
-                serverOut.print("SQUIT \r\n");
-                socket.close();
-                serverIn.close();
-                serverIn = null;
-                serverOut.close();
-                serverOut = null;
-                UI.println("Connection Closed");
-            }catch(IOException e){
-                System.out.println("Failed disconnection "+ e);
-            }
-        }
-    }
-
-    /**
-     * shows all of the channels on the server
-     */
-    public void showChannel(){
-        if (serverIn !=null && serverOut != null){
-            serverOut.print("LIST \r\n");
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * allows the user to choose a channel to join
-     */
-    public void joinChannel(){
-        if (serverIn !=null && serverOut != null){
-            serverOut.print("JOIN " + requestChannel + "\r\n");
-            channel = requestChannel;
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * has the user leave the channel if they are onto to one
-     */
-    public void leaveChannel(){
-        if (serverIn !=null && serverOut != null){
-            if(channel!=null){
-                serverOut.print("PART " + channel + "\r\n");
-            }else{
-                UI.println("Not joined to a channel");
-            }
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * Makes the name of the channel value being entered
-     */
-    private void enterChannelName(String c){
-        requestChannel = c;
-    }
-
-    /**
-     * Sends the text entered to the channel that the user is logged onto
-     */
-    public void sendToChannel(){
-        if(serverIn !=null && serverOut != null){
-            if(channel != null){
-                toSend = userMessage;
-                send(toSend, channel);
-            }
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * Sends the text entered to the user on the same server between them
-     */
-    public void sendToUser(){
-        if(serverIn !=null && serverOut != null){
-            if(targetUser != null){
-                isSendMessage = true;
-                serverOut.print("ISON " + targetUser + "\r\n"); //checks if user exists
-            }
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * Makes the name of the target user to be entered equal whats in the textfield
-     */
-    private void enterTargetUser(String t){
-        targetUser = t;
-    }
-
-    /**
-     * Is the field that the user types in the message they have
-     */
-    private void message(String m){
-        userMessage = m;
-    }
-
-    /**
-     * checks through all of the text window occurances to see if they equal
-     * the channel/target it's being sent to. If not, a new one is made and
-     * it returns that index
-     */
-    public int checkTextWindow(String target){
-        int index = 0;
-        for (index = 0; index < tw.size(); index ++){
-            if(tw.get(index).equals(target)){return index;}
-        }
-        tw.add(new TextWindow(target));
-        return index;
-    }
-
-    /**
-     * show all of the nicknames on the channel that the user is connected to
-     */
-    public void showNames(){
-        if(serverIn !=null && serverOut != null){
-            if (channel != null){
-                serverOut.print("NAMES " + "\r\n");
-            }else{
-                UI.println("You need to be connected to a channel before seeing users on it");
-            }
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * show all of the usernames on the server that the user is connected to
-     */
-    public void showUsers(){
-        if(serverIn !=null && serverOut != null){
-            serverOut.print("USERS " + "\r\n");
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * shows the help file on the server, helping out the user understand IRC
-     */
-    public void showHelp(){
-        if(serverIn !=null && serverOut != null){
-            serverOut.print("HELP " + "\r\n");
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * sends message to the server asking for the MOTD
-     */
-    public void showMOTD(){
-        if(serverIn !=null && serverOut != null){
-            serverOut.print("MOTD " + "\r\n");
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-
-    /**
-     * sends message to the server asking for the MOTD
-     */
-    public void showISON(){
-        if(serverIn !=null && serverOut != null){
-            String s = UI.askString("Check for nicknames on server:");
-            serverOut.print("ISON " + s + "\r\n");
-        }else{
-            UI.println("Must be connected to server.");
-        }
-    }
-}
+import ecs100.*;
+import java.io.*;
+import java.util.*; 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Basic IRC Chat Client 
+ *
+ * The Swing front end of an IrcClient: the buttons drive the client, and
+ * its events (see IrcListener) are shown in the UI and the text windows.
+ */
+
+public class ChatClient implements IrcListener {
+    private String server = "irc.ecs.vuw.ac.nz";  // default IRC server for testing.
+    private static final int IRC_PORT = 6667;     // The standard IRC port number.
+    private static final int SHOW_CHANNELS = 100; // how many of the biggest channels are shown
+    IrcClient client;                     // runs the connections, made on the first connect
+    volatile IrcSession session = null;   // the session the buttons act on
+    volatile String channel = null; // the channel the channel buttons act on: the last one joined or named
+    String requestChannel = null;
+    String toSend = null;
+    String targetUser = null;
+
+    TargetRegistry<TextWindow> windows = new TargetRegistry<TextWindow>( //the text window for each channel/user
+        TargetRegistry.DEFAULT_MAX_QUERIES, target -> new TextWindow(network(), target), TextWindow::remove);
+    ChatLogRecorder recorder = new ChatLogRecorder(); // keeps the searchable log of each server we are on
+    MessageRules rules = new MessageRules();          // ignores, highlights and filters, checked before any window sees a message
+    Map<IrcSession, Map<TextWindow, List<String>>> held = // lines for each window held back while a session's batch is raised
+        new ConcurrentHashMap<IrcSession, Map<TextWindow, List<String>>>();
+    String userMessage;
+
+    /**
+     * main: construct a new ChatClient
+     */
+    public static void main(String[] args) {
+        new ChatClient();
+    }
+
+    /** 
+     * Sets up the user interface.
+     */
+    public ChatClient (){ 
+        UI.addButton("Connect", this::connect);
+        UI.addButton("Disconnect", this::closeConnection);
+        UI.addButton("Show Channels", this::showChannel);
+        UI.addButton("Join a Channel", this::joinChannel);
+        UI.addTextField("Enter Channel Name", this::enterChannelName);
+        UI.addButton("Leave Channel", this::leaveChannel);
+        UI.addButton("Send to Channel", this::sendToChannel);    
+        UI.addButton("Send to User", this::sendToUser);
+        UI.addTextField("Enter Target User", this::enterTargetUser);
+        UI.addTextField("Message Field", this::message);
+        UI.addButton("Show Nicknames", this::showNames);
+        UI.addButton("Show User Count", this::showUsers);
+        UI.addButton("Show Help", this::showHelp);
+        UI.addButton("Show the Message of the Day", this::showMOTD);
+        UI.addButton("Check for Nickname", this::showISON);
+        UI.addButton("Search Logs", this::searchLogs);
+        UI.addButton("Search Channels", this::searchChannels);
+        UI.addButton("Add Message Rule", this::addRule);
+        ClientMetrics.METRICS.start(ClientMetrics.SNAPSHOT_SECONDS);
+    }
+
+    /**
+     * If there is currently an active session, it should close it.
+     * Asks for the login details (calling the login method), then opens
+     *  a new session to the server through the client.
+     * The session sends the login once connected, and the client then
+     *  reports what the server sends as events (see the IrcListener methods).
+     */
+    public void connect(){
+        try{
+            if(session!=null){
+                closeConnection();
+                ClientMetrics.METRICS.reconnects.increment();
+            }
+            if(client == null){
+                client = new IrcClient(new SessionManager(), rules);
+                client.addListener(recorder);
+                client.addListener(this);
+            }
+            login();
+        }catch(IOException e){
+            System.out.println("Failed connection "+ e);
+        }
+
+    }
+
+    /**
+     * Ask user for username and real name, and open a session that sends
+     *  them to the server (NICK command and USER command).
+     * Over TLS the user may also give their account password, which is
+     *  sent with SASL PLAIN while logging in.
+     */
+    private void login(){
+        String username = UI.askToken("Enter your usercode: ");
+        String realname = UI.askString("Enter your real name: ");
+        boolean secure = UI.askBoolean("Connect securely (TLS)? ");
+        Sasl sasl = null;
+        if(secure){
+            String password = UI.askString("Enter your account password (blank for none): ");
+            if(!password.isEmpty()){sasl = Sasl.plain(username, password);}
+        }
+
+        session = client.connect(server, secure ? TlsLayer.TLS_PORT : IRC_PORT,
+            secure ? TlsLayer.defaultContext() : null, sasl, username, realname);
+    }
+
+    /**
+     * Called when the server accepts the login (004)
+     */
+    public void loggedIn(IrcSession s){
+        UI.println("Login Successful" + (s.isResumed() ? " (secure, resumed)" : s.isSecure() ? " (secure)" : ""));
+    }
+
+    /**
+     * Called when the server refuses the login (433 - nickname in use)
+     */
+    public void loginFailed(IrcSession s, String reason){
+        UI.println(reason);
+        UI.println("Login Failed");
+    }
+
+    /**
+     * Called on the session's event loop when the connection is closed.
+     */
+    public void disconnected(IrcSession s, IOException cause){
+        if(cause != null){
+            System.out.println("Failed connection "+ cause);
+        }
+        UI.println("Connection Closed");
+    }
+
+    /**
+     * Called when the connection drops; the session reconnects and rejoins
+     * by itself
+     */
+    public void reconnecting(IrcSession s, IOException cause, long delayMillis){
+        System.out.println("Failed connection "+ cause);
+        UI.println("Connection lost, reconnecting in " + (delayMillis + 999) / 1000 + "s");
+    }
+
+    /**
+     * Send a message to the current server:
+     *  - check that there is a session and a target
+     *  - the client queues the PRIVMSG on the session's connection, which
+     *    adds the \r\n and writes it from the event loop
+     *  - the message is shown in its window when the client reports it sent
+     */
+    private void send(String msg, String target){
+        if(isConnected() && target !=null){
+            client.send(session, target, msg);
+        }else{
+            UI.print("No conenction to a server");
+            return;
+        }
+    }
+
+    /**
+     * shows a message we sent in its window
+     */
+    public void sent(IrcSession s, String target, String text){
+        checkTextWindow(target).interact("> " + text);
+    }
+
+    /**
+     * a message to a user couldn't be sent as they aren't online
+     */
+    public void noSuchNick(IrcSession s, String nick){
+        UI.println("Nickname doesn't exist on server");
+    }
+
+    /**
+     * shows users quitting out of the server
+     */
+    public void quit(IrcSession s, String nick, String reason){
+        UI.println(nick + " Left Server");
+    }
+
+    /**
+     * shows a user leaving a channel in its window, closing the window if
+     * it was us
+     */
+    public void parted(IrcSession s, String chan, String nick, String reason){
+        show(s, chan, nick + " Left Channel: " + reason);
+        if(nick.equals(s.nick())){left(s, chan);}
+    }
+
+    /**
+     * shows a user being kicked from a channel in its window, closing the
+     * window if it was us
+     */
+    public void kicked(IrcSession s, String chan, String nick, String by, String reason){
+        show(s, chan, nick + " Kicked by " + by + ": " + reason);
+        if(nick.equals(s.nick())){left(s, chan);}
+    }
+
+    /**
+     * closes the window of a channel we are no longer in; if the buttons
+     * were acting on it, they move to another channel we are still in
+     */
+    private void left(IrcSession s, String chan){
+        TextWindow window = windows.remove(chan);
+        if(window != null){
+            Map<TextWindow, List<String>> batch = held.get(s);
+            if(batch != null){batch.remove(window);}
+            window.remove();
+        }
+        String c = channel;
+        if(c != null && !s.isOn(c)){
+            Iterator<String> others = s.channels().iterator();
+            channel = others.hasNext() ? others.next() : null;
+        }
+    }
+
+    /**
+     * shows a user joining a channel in its window
+     */
+    public void joined(IrcSession s, String chan, String nick){
+        show(s, chan, nick + " Joined Channel: " + chan);
+    }
+
+    /**
+     * shows a message in the window of the channel it was sent to, or of
+     * the user who sent it
+     */
+    public void message(IrcSession s, String nick, String target, String message){
+        if(nick != null){
+            if (TargetRegistry.isChannel(target)){// the message is to a channel
+                show(s, target, nick + " - " + message);
+            }else{ //the message is to the user
+                show(s, nick, nick + " - " + message);
+            }
+        }
+    }
+
+    /**
+     * starts holding back the window lines of the batch's events, so a
+     * history replay or netsplit reaches each window as one update
+     */
+    public void batchStarted(IrcSession s, IrcBatch b){
+        held.put(s, new LinkedHashMap<TextWindow, List<String>>());
+    }
+
+    /**
+     * gives each window the lines held back for it, all at once
+     */
+    public void batchEnded(IrcSession s, IrcBatch b){
+        Map<TextWindow, List<String>> batch = held.remove(s);
+        if(batch == null){return;}
+        for(Map.Entry<TextWindow, List<String>> e : batch.entrySet()){
+            e.getKey().interact(e.getValue());
+        }
+    }
+
+    /**
+     * shows a line in the target's window, or holds it back if the session
+     * is in the middle of a batch (events come on the session's own
+     * thread, so its held lines are only touched there)
+     */
+    private void show(IrcSession s, String target, String line){
+        TextWindow window = checkTextWindow(target);
+        Map<TextWindow, List<String>> batch = held.get(s);
+        if(batch != null){
+            batch.computeIfAbsent(window, w -> new ArrayList<String>()).add(line);
+        }else{
+            window.interact(line);
+        }
+    }
+
+    /**
+     * matches window names the way the server does, once it has said how
+     */
+    public void supports(IrcSession s){
+        windows.setCaseMapping(s.caseMapping());
+    }
+
+    /**
+     * shows the text of replies without an event of their own (MOTD, HELP...)
+     */
+    public void numeric(IrcSession s, int code, IrcMessage msg){
+        UI.println(msg.last());
+    }
+
+    /**
+     * shows the text of any other line from the server
+     */
+    public void other(IrcSession s, IrcMessage msg){
+        UI.println(msg.last());
+    }
+
+    /**
+     * shows the rows of the channel list given, in one go
+     */
+    private void printChannels(ChannelDirectory.Listing list, int[] rows, int max){
+        if(rows.length == 0){
+            UI.println("No matching channels");
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < rows.length && i < max; i++){
+            int row = rows[i];
+            sb.append(list.name(row)).append(" has ").append(list.users(row)).append(" user(s)");
+            if(!list.topic(row).isEmpty()){sb.append(": ").append(list.topic(row));}
+            sb.append('\n');
+        }
+        if(rows.length > max){sb.append("... and ").append(rows.length - max).append(" more\n");}
+        UI.print(sb.toString());
+    }
+
+    /**
+     * shows how many are on a channel once its names have all come in (366)
+     */
+    public void namesEnd(IrcSession s, String channel, int count){
+        if(count >= 0){
+            UI.println(channel + " has " + count + " user(s)");
+        }
+    }
+
+    /**
+     * searches the chat log of the server for lines with all of the words
+     * asked for, showing the newest ones
+     */
+    public void searchLogs(){
+        ChatLog chatLog = recorder.log(session);
+        if(chatLog == null){
+            UI.println("Must have logged in to a server.");
+            return;
+        }
+        String words = UI.askString("Search the logs for:");
+        try{
+            List<ChatLog.Entry> found = chatLog.search(words, null, 50);
+            if(found.isEmpty()){
+                UI.println("No matching lines");
+            }
+            for(int i = found.size() - 1; i >= 0; i--){
+                UI.println(found.get(i).toString());
+            }
+        }catch(IOException e){
+            System.out.println("Failed searching chat log "+ e);
+        }
+    }
+
+    /**
+     * Close the connection:
+     *  - the session queues the quit message,
+     *  - and closes the connection once what is queued has been written
+     *  - a message is printed to the user when it is closed (see disconnected)
+     */
+    public void closeConnection(){
+        if(isConnected()){
+            client.disconnect(session);
+        }
+    }
+
+    /**
+     * checks that there is a connection to the server that lines can be sent on
+     */
+    /**
+     * the server the windows being made belong to, as host:port
+     */
+    private String network(){
+        IrcSession s = session;
+        return s == null ? server + ":" + IRC_PORT : s.host() + ":" + s.port();
+    }
+
+    private boolean isConnected(){
+        return session != null && session.isOpen();
+    }
+
+    /**
+     * shows the biggest channels on the server. The list is kept for a few
+     * minutes, so asking again doesn't download it again.
+     */
+    public void showChannel(){
+        if(isConnected()){
+            session.directory().request(0, Integer.MAX_VALUE, false, list -> {
+                if(list == null){
+                    UI.println("The server would not list its channels.");
+                    return;
+                }
+                printChannels(list, list.sorted(ChannelDirectory.BY_USERS, true), SHOW_CHANNELS);
+            });
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * shows the channels with the text asked for in their name or topic,
+     * biggest first
+     */
+    public void searchChannels(){
+        if(isConnected()){
+            String text = UI.askString("Search the channels for:");
+            session.directory().request(0, Integer.MAX_VALUE, false, list -> {
+                if(list == null){
+                    UI.println("The server would not list its channels.");
+                    return;
+                }
+                ChannelDirectory.Listing found = list.search(text);
+                printChannels(found, found.sorted(ChannelDirectory.BY_USERS, true), SHOW_CHANNELS);
+            });
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * Asks for a rule and adds it:
+     *  - ignore nick!user@host (or just a nick): nothing from them is shown
+     *  - highlight word: messages with the word are pointed out
+     *  - drop word: messages with the word are not shown
+     *  - filter regex: messages the expression matches are not shown
+     */
+    public void addRule(){
+        String rule = UI.askString("Rule (ignore <mask>, highlight <word>, drop <word>, filter <regex>):").trim();
+        int space = rule.indexOf(' ');
+        if(space < 0){
+            UI.println("Unknown rule: " + rule);
+            return;
+        }
+        String kind = rule.substring(0, space), arg = rule.substring(space + 1).trim();
+        try{
+            switch(kind){
+                case "ignore": rules.ignore(arg); break;
+                case "highlight": rules.keyword(arg, MessageRules.HIGHLIGHT); break;
+                case "drop": rules.keyword(arg, MessageRules.DROP); break;
+                case "filter": rules.pattern(arg, MessageRules.DROP); break;
+                default: UI.println("Unknown rule: " + rule); return;
+            }
+            UI.println("Added rule: " + rule);
+        }catch(PatternSyntaxException e){
+            UI.println("Not a valid expression: " + e.getDescription());
+        }
+    }
+
+    /**
+     * points out a message that matched a highlight rule
+     */
+    public void highlighted(IrcSession s, String from, String target, String text){
+        UI.println("Highlight in " + target + " from " + from + ": " + text);
+    }
+
+    /**
+     * allows the user to choose a channel to join; it joins the others
+     * already joined, and the channel buttons act on it from then on
+     */
+    public void joinChannel(){
+        if(isConnected()){
+            if(requestChannel == null){
+                UI.println("Enter a channel name first");
+                return;
+            }
+            client.join(session, requestChannel);
+            channel = requestChannel;
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * has the user leave the channel the buttons act on, if they are on one
+     */
+    public void leaveChannel(){
+        if(isConnected()){
+            if(channel!=null){
+                client.part(session, channel);
+            }else{
+                UI.println("Not joined to a channel");
+            }
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * Makes the name of the channel value being entered; naming a channel
+     * already joined makes the channel buttons act on it
+     */
+    private void enterChannelName(String c){
+        requestChannel = c;
+        if(session != null && session.isOn(c)){
+            channel = c;
+        }
+    }
+
+    /**
+     * Sends the text entered to the channel the buttons act on
+     */
+    public void sendToChannel(){
+        if(isConnected()){
+            if(channel != null){
+                toSend = userMessage;
+                send(toSend, channel);
+            }
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * Sends the text entered to the user on the same server between them.
+     * The message goes straight out if the user is known to be online;
+     * otherwise it waits for the session's presence check (ISON).
+     */
+    public void sendToUser(){
+        if(isConnected()){
+            if(targetUser != null){
+                client.sendToUser(session, targetUser, userMessage);
+            }
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * Makes the name of the target user to be entered equal whats in the textfield
+     */
+    private void enterTargetUser(String t){
+        targetUser = t;
+    }
+
+    /**
+     * Is the field that the user types in the message they have
+     */
+    private void message(String m){
+        userMessage = m;
+    }
+
+    /**
+     * finds the text window for the channel/target it's being sent to,
+     * matching names the way the server does. If there isn't one, a new one
+     * is made. Private conversations idle for the longest are closed once
+     * there are too many open.
+     */
+    public TextWindow checkTextWindow(String target){
+        return windows.getOrCreate(target);
+    }
+
+    /**
+     * show all of the nicknames on the channel the buttons act on
+     */
+    public void showNames(){
+        if(isConnected()){
+            if (channel != null){ //the session keeps the member list up to date
+                UI.println("Nicknames on the channel: " + String.join(" ", session.members().members(channel)));
+            }else{
+                UI.println("You need to be connected to a channel before seeing users on it");
+            }
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * show all of the usernames on the server that the user is connected to
+     */
+    public void showUsers(){
+        if(isConnected()){
+            session.send("USERS");
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * shows the help file on the server, helping out the user understand IRC
+     */
+    public void showHelp(){
+        if(isConnected()){
+            session.send("HELP");
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * sends message to the server asking for the MOTD
+     */
+    public void showMOTD(){
+        if(isConnected()){
+            session.send("MOTD");
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+
+    /**
+     * checks whether each of the nicknames asked for is on the server
+     */
+    public void showISON(){
+        if(isConnected()){
+            String s = UI.askString("Check for nicknames on server:");
+            for(String nick : s.trim().split(" +")){
+                if(nick.isEmpty()){continue;}
+                session.presence().check(nick, online -> {
+                    if(online){
+                        UI.println(nick + ": That nickname matches one on the server.");
+                    }else{
+                        UI.println(nick + ": There are no matching nicknames");
+                    }
+                });
+            }
+        }else{
+            UI.println("Must be connected to server.");
+        }
+    }
+}
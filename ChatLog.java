@@ -0,0 +1,496 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * A persistent, searchable log of what happened on one server: messages,
+ * joins, parts and quits, for every target.
+ *
+ * Three append-only files live in the log's directory:
+ *  - messages.seg: the records, [length][time][type][target][nick][text]
+ *  - messages.idx: one entry every INDEX_INTERVAL records, giving the time
+ *    and file offset of that block, so time ranges and record numbers are
+ *    found by binary search instead of a scan
+ *  - messages.terms: the word hashes of each record, from which the
+ *    in-memory inverted index is loaded without re-reading the text
+ *
+ * The inverted index maps each word to the (ascending) numbers of the
+ * records containing it, and grows as records are appended. A search
+ * intersects the lists for its words, newest first, and only reads the
+ * records that can match.
+ *
+ * The segment is the source of truth: if the index or terms file does not
+ * agree with it when the log is opened (say after a crash), both are
+ * rebuilt from the segment.
+ */
+public class ChatLog implements Closeable {
+    public static final byte MESSAGE = 0, JOIN = 1, PART = 2, QUIT = 3;
+    private static final String[] TYPE_NAMES = {"", "joined", "left", "quit"};
+    private static final int INDEX_INTERVAL = 256;  // records per index block
+    private static final int FLUSH_INTERVAL = 64;   // records written before flushing
+    private static final int MAX_WORD = 32;
+
+    private final RandomAccessFile reader;
+    private final DataOutputStream segment;
+    private DataOutputStream index;
+    private DataOutputStream terms;
+    private long segmentEnd;
+    private int count = 0;                          // records in the log
+    private int unflushed = 0;
+    private long[] blockTimes = new long[64];       // the index blocks
+    private long[] blockOffsets = new long[64];
+    private final Postings postings = new Postings();
+    private final int[] wordScratch = new int[256];
+
+    /**
+     * One record from the log.
+     */
+    public static class Entry {
+        public final long time;
+        public final byte type;
+        public final String target, nick, text;
+
+        Entry(long time, byte type, String target, String nick, String text){
+            this.time = time;
+            this.type = type;
+            this.target = target;
+            this.nick = nick;
+            this.text = text;
+        }
+
+        public String toString(){
+            String when = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(time));
+            if(type == MESSAGE){
+                return when + " " + target + " <" + nick + "> " + text;
+            }
+            return when + " " + target + " " + nick + " " + TYPE_NAMES[type] + (text.isEmpty() ? "" : " (" + text + ")");
+        }
+    }
+
+    /**
+     * opens (or makes) the log in dir and loads its index
+     */
+    public ChatLog(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path seg = dir.resolve("messages.seg");
+        Path idx = dir.resolve("messages.idx");
+        Path trm = dir.resolve("messages.terms");
+        int blocks = loadIndex(idx);
+        boolean termsWhole = loadTerms(trm);
+        reader = new RandomAccessFile(seg.toFile(), "rw");
+        if(!termsWhole || blocks != blockCount() || countRecords(blocks) != count){
+            rebuild(idx, trm);
+        }else{
+            index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idx.toFile(), true)));
+            terms = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(trm.toFile(), true)));
+        }
+        reader.setLength(segmentEnd); // drop a record cut short by a crash
+        segment = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(seg.toFile(), true)));
+    }
+
+    /**
+     * opens the log for a server in ~/.irc-chat/logs
+     */
+    public static ChatLog open(String server) throws IOException {
+        String name = server.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9._-]", "_");
+        return new ChatLog(Paths.get(System.getProperty("user.home"), ".irc-chat", "logs", name));
+    }
+
+    /**
+     * the number of records in the log
+     */
+    public synchronized int size(){
+        return count;
+    }
+
+    /**
+     * appends a record, stamped with the current time
+     */
+    public void record(byte type, String target, String nick, String text){
+        record(System.currentTimeMillis(), type, target, nick, text);
+    }
+
+    /**
+     * appends a record and adds its words to the index
+     */
+    public synchronized void record(long time, byte type, String target, String nick, String text){
+        try{
+            indexRecord(time, text);
+            byte[] t = target.getBytes(StandardCharsets.UTF_8);
+            byte[] n = nick.getBytes(StandardCharsets.UTF_8);
+            byte[] x = text.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + 1 + 2 + t.length + 2 + n.length + 4 + x.length;
+            segment.writeInt(length);
+            segment.writeLong(time);
+            segment.writeByte(type);
+            segment.writeShort(t.length);
+            segment.write(t);
+            segment.writeShort(n.length);
+            segment.write(n);
+            segment.writeInt(x.length);
+            segment.write(x);
+            segmentEnd += 4 + length;
+            count++;
+            if(++unflushed >= FLUSH_INTERVAL){flush();}
+        }catch(IOException e){
+            System.out.println("Failed writing chat log " + e);
+        }
+    }
+
+    /**
+     * Finds the newest records (up to limit) whose text contains every word
+     * of the query, optionally only for one target (null for all), newest
+     * first.
+     */
+    public synchronized List<Entry> search(String query, String target, int limit) throws IOException {
+        flush();
+        List<Entry> found = new ArrayList<Entry>();
+        int[] words = new int[64];
+        int n = words(query, words);
+        if(n == 0){return found;}
+        int[][] lists = new int[n][];
+        int[] sizes = new int[n];
+        for(int i = 0; i < n; i++){
+            lists[i] = postings.list(words[i]);
+            sizes[i] = postings.size(words[i]);
+            if(sizes[i] == 0){return found;}
+        }
+        String lowerQuery = query.toLowerCase(Locale.ROOT);
+        int[] pos = sizes.clone();  // walk every list backwards in step
+        int shortest = 0;
+        for(int i = 1; i < n; i++){if(sizes[i] < sizes[shortest]){shortest = i;}}
+        while(found.size() < limit && pos[shortest] > 0){
+            int candidate = lists[shortest][--pos[shortest]];
+            boolean all = true;
+            for(int i = 0; i < n && all; i++){
+                if(i == shortest){continue;}
+                while(pos[i] > 0 && lists[i][pos[i] - 1] > candidate){pos[i]--;}
+                all = pos[i] > 0 && lists[i][pos[i] - 1] == candidate;
+            }
+            if(!all){continue;}
+            Entry e = read(candidate);
+            if(e != null && (target == null || e.target.equalsIgnoreCase(target))
+               && containsWords(e.text.toLowerCase(Locale.ROOT), lowerQuery)){
+                found.add(e);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * the records from time from up to time to (in milliseconds), oldest
+     * first, optionally for one target (null for all); at most limit
+     */
+    public synchronized List<Entry> range(long from, long to, String target, int limit) throws IOException {
+        flush();
+        List<Entry> found = new ArrayList<Entry>();
+        int blocks = blockCount();
+        if(blocks == 0){return found;}
+        int lo = 0, hi = blocks - 1; // last block starting at or before from
+        while(lo < hi){
+            int mid = (lo + hi + 1) >>> 1;
+            if(blockTimes[mid] <= from){lo = mid;}else{hi = mid - 1;}
+        }
+        reader.seek(blockOffsets[lo]);
+        for(int r = lo * INDEX_INTERVAL; r < count && found.size() < limit; r++){
+            Entry e = readNext();
+            if(e.time > to){break;}
+            if(e.time >= from && (target == null || e.target.equalsIgnoreCase(target))){
+                found.add(e);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * adds the record about to be written at segmentEnd to the block index
+     * and its words to the inverted index, and writes both out
+     */
+    private void indexRecord(long time, String text) throws IOException {
+        if(count % INDEX_INTERVAL == 0){
+            addBlock(time, segmentEnd);
+            index.writeLong(time);
+            index.writeLong(segmentEnd);
+        }
+        int words = words(text, wordScratch);
+        terms.writeInt(words);
+        for(int i = 0; i < words; i++){
+            terms.writeInt(wordScratch[i]);
+            postings.add(wordScratch[i], count);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        unflushed = 0;
+        segment.flush();
+        index.flush();
+        terms.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        segment.close();
+        index.close();
+        terms.close();
+        reader.close();
+    }
+
+    /**
+     * reads record number r: a seek to its block, then a skip through it
+     */
+    private Entry read(int r) throws IOException {
+        reader.seek(blockOffsets[r / INDEX_INTERVAL]);
+        for(int skip = r % INDEX_INTERVAL; skip > 0; skip--){
+            reader.seek(reader.getFilePointer() + 4 + reader.readInt());
+        }
+        return readNext();
+    }
+
+    private Entry readNext() throws IOException {
+        reader.readInt();
+        return readBody(reader);
+    }
+
+    /**
+     * reads a record after its length
+     */
+    private static Entry readBody(DataInput in) throws IOException {
+        long time = in.readLong();
+        byte type = in.readByte();
+        String target = readString(in, in.readUnsignedShort());
+        String nick = readString(in, in.readUnsignedShort());
+        String text = readString(in, in.readInt());
+        return new Entry(time, type, target, nick, text);
+    }
+
+    private static String readString(DataInput in, int length) throws IOException {
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * the hashes of the lower cased words (runs of letters and digits, at
+     * least two long) in s, up to out.length of them
+     */
+    static int words(String s, int[] out){
+        int n = 0;
+        int hash = 0;
+        int len = 0;
+        for(int i = 0; i <= s.length() && n < out.length; i++){
+            char c = i < s.length() ? s.charAt(i) : ' ';
+            if(Character.isLetterOrDigit(c)){
+                if(len < MAX_WORD){hash = 31 * hash + Character.toLowerCase(c);}
+                len++;
+            }else{
+                if(len >= 2){out[n++] = hash;}
+                hash = 0;
+                len = 0;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * checks every word of the query really is in the text (the index
+     * only compares hashes)
+     */
+    private static boolean containsWords(String text, String query){
+        for(String w : query.split("[^\\p{L}\\p{Nd}]+")){
+            if(w.length() >= 2 && !text.contains(w)){return false;}
+        }
+        return true;
+    }
+
+    /**
+     * reads the block index, returning the number of blocks (-1 if the
+     * file ends part way through an entry)
+     */
+    private int loadIndex(Path idx) throws IOException {
+        if(!Files.exists(idx)){return 0;}
+        if(Files.size(idx) % 16 != 0){return -1;}
+        int blocks = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(idx)))){
+            while(true){
+                long time = in.readLong();
+                long offset = in.readLong();
+                count = blocks * INDEX_INTERVAL;
+                addBlock(time, offset);
+                blocks++;
+            }
+        }catch(EOFException e){
+            // end of the index file
+        }
+        count = 0; // counted from the terms file
+        return blocks;
+    }
+
+    /**
+     * reads the word hashes of every record into the inverted index;
+     * returns false if the file ends part way through a record
+     */
+    private boolean loadTerms(Path trm) throws IOException {
+        if(!Files.exists(trm)){return true;}
+        boolean whole = true;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(trm)))){
+            while(true){
+                whole = true;
+                int words = in.readInt();
+                whole = false;
+                for(int i = 0; i < words; i++){
+                    postings.add(in.readInt(), count);
+                }
+                count++;
+            }
+        }catch(EOFException e){
+            // end of the terms file
+        }
+        return whole;
+    }
+
+    /**
+     * counts the records in the segment by walking its last block, setting
+     * segmentEnd to the end of the last whole record; -1 if the index
+     * points past the segment
+     */
+    private int countRecords(int blocks) throws IOException {
+        long pos = 0;
+        int records = 0;
+        if(blocks > 0){
+            pos = blockOffsets[blocks - 1];
+            records = (blocks - 1) * INDEX_INTERVAL;
+        }
+        long length = reader.length();
+        if(pos > length){return -1;}
+        while(pos + 4 <= length){
+            reader.seek(pos);
+            int len = reader.readInt();
+            long next = pos + 4 + len;
+            if(len < 0 || next > length){break;} // cut short or corrupt: the valid records end here
+            pos = next;
+            records++;
+        }
+        segmentEnd = pos;
+        return records;
+    }
+
+    /**
+     * rewrites the index and terms files from the segment
+     */
+    private void rebuild(Path idx, Path trm) throws IOException {
+        System.out.println("Rebuilding chat log index in " + idx.getParent());
+        postings.clear();
+        count = 0;
+        segmentEnd = 0;
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idx.toFile(), false)));
+        terms = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(trm.toFile(), false)));
+        long length = reader.length();
+        reader.seek(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(reader.getFD())));
+        while(segmentEnd + 4 <= length){
+            int size = in.readInt();
+            if(size < 0 || segmentEnd + 4 + size > length){break;}
+            Entry e = readBody(in);
+            indexRecord(e.time, e.text);
+            segmentEnd += 4 + size;
+            count++;
+        }
+        index.flush();
+        terms.flush();
+    }
+
+    private int blockCount(){
+        return (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    }
+
+    private void addBlock(long time, long offset){
+        int b = count / INDEX_INTERVAL;
+        if(b == blockTimes.length){
+            blockTimes = Arrays.copyOf(blockTimes, b * 2);
+            blockOffsets = Arrays.copyOf(blockOffsets, b * 2);
+        }
+        blockTimes[b] = time;
+        blockOffsets[b] = offset;
+    }
+
+    /**
+     * word hash to ascending record numbers, in an open addressing table
+     * of int lists so no boxing is done per word
+     */
+    private static class Postings {
+        private int[] keys = new int[1024];
+        private int[][] lists = new int[1024][];
+        private int[] sizes = new int[1024];
+        private boolean[] used = new boolean[1024];
+        private int entries = 0;
+
+        void add(int word, int record){
+            int slot = slot(word);
+            if(!used[slot]){
+                if(entries * 2 >= keys.length){
+                    grow();
+                    slot = slot(word);
+                }
+                used[slot] = true;
+                keys[slot] = word;
+                lists[slot] = new int[4];
+                entries++;
+            }
+            int size = sizes[slot];
+            if(size > 0 && lists[slot][size - 1] == record){return;} // word repeated in the record
+            if(size == lists[slot].length){
+                lists[slot] = Arrays.copyOf(lists[slot], size * 2);
+            }
+            lists[slot][size] = record;
+            sizes[slot] = size + 1;
+        }
+
+        void clear(){
+            Arrays.fill(used, false);
+            Arrays.fill(lists, null);
+            Arrays.fill(sizes, 0);
+            entries = 0;
+        }
+
+        int[] list(int word){
+            int slot = slot(word);
+            return used[slot] ? lists[slot] : new int[0];
+        }
+
+        int size(int word){
+            int slot = slot(word);
+            return used[slot] ? sizes[slot] : 0;
+        }
+
+        private int slot(int word){
+            int mask = keys.length - 1;
+            int bits = Integer.numberOfTrailingZeros(keys.length);
+            int slot = (word * 0x9E3779B9 >>> (32 - bits)) & mask; // as many of the top bits as there are slots
+            while(used[slot] && keys[slot] != word){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow(){
+            int[] oldKeys = keys;
+            int[][] oldLists = lists;
+            int[] oldSizes = sizes;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            lists = new int[keys.length][];
+            sizes = new int[keys.length];
+            used = new boolean[keys.length];
+            for(int i = 0; i < oldKeys.length; i++){
+                if(!oldUsed[i]){continue;}
+                int slot = slot(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                lists[slot] = oldLists[i];
+                sizes[slot] = oldSizes[i];
+            }
+        }
+    }
+}
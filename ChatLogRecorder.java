@@ -0,0 +1,132 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes a session's messages, joins, parts and quits to the ChatLog of its
+ * server while it is logged in. Each server has its own log, shared by the
+ * sessions on it and closed when the last of them disconnects, so sessions
+ * on different servers don't close each other's logs.
+ *
+ * It is an IrcListener with no user interface of its own, so it works the
+ * same for the Swing client and headless loggers.
+ */
+public class ChatLogRecorder implements IrcListener {
+    private final Map<String, HostLog> logs = new HashMap<String, HostLog>();  // by host (guarded by this)
+    private final Map<Integer, HostLog> sessions = new ConcurrentHashMap<Integer, HostLog>(); // by session id
+
+    /**
+     * one server's log, shared by every session logged in to it
+     */
+    private static class HostLog {
+        final String host;
+        final ChatLog log;
+        int users = 0;      // sessions writing to it (guarded by the recorder)
+        long lastTime = 0;  // of the last record (guarded by this)
+        boolean closed = false;
+
+        HostLog(String host, ChatLog log){
+            this.host = host;
+            this.log = log;
+        }
+    }
+
+    /**
+     * the log the session is writing to, or null if it isn't logged in
+     */
+    public ChatLog log(IrcSession s){
+        HostLog h = s == null ? null : sessions.get(s.id());
+        return h == null ? null : h.log;
+    }
+
+    /**
+     * opens the log of the session's server, unless another session on
+     * the same server already has (a reconnected session keeps its own)
+     */
+    public synchronized void loggedIn(IrcSession s){
+        if(sessions.containsKey(s.id())){return;}
+        HostLog h = logs.get(s.host());
+        if(h == null){
+            try{
+                h = new HostLog(s.host(), ChatLog.open(s.host()));
+            }catch(IOException e){
+                System.out.println("Failed opening chat log "+ e);
+                return;
+            }
+            logs.put(s.host(), h);
+        }
+        h.users++;
+        sessions.put(s.id(), h);
+    }
+
+    /**
+     * stops the session writing, closing its server's log once no session
+     * is writing to it
+     */
+    public synchronized void disconnected(IrcSession s, IOException cause){
+        HostLog h = sessions.remove(s.id());
+        if(h != null && --h.users == 0){
+            logs.remove(h.host);
+            close(h);
+        }
+    }
+
+    public void message(IrcSession s, String from, String target, String text){
+        record(s, s.time(), ChatLog.MESSAGE, target, from, text);
+    }
+
+    public void sent(IrcSession s, String target, String text){
+        record(s, System.currentTimeMillis(), ChatLog.MESSAGE, target, s.nick(), text);
+    }
+
+    public void joined(IrcSession s, String channel, String nick){
+        record(s, s.time(), ChatLog.JOIN, channel, nick, "");
+    }
+
+    public void parted(IrcSession s, String channel, String nick, String reason){
+        record(s, s.time(), ChatLog.PART, channel, nick, reason);
+    }
+
+    public void quit(IrcSession s, String nick, String reason){
+        record(s, s.time(), ChatLog.QUIT, "*", nick, reason);
+    }
+
+    /**
+     * Times are the server's (server-time) where it gives them, so lines
+     * are logged when they were said rather than when they arrived. The
+     * log's index needs them in order, so a line older than the last one
+     * recorded (replayed history, say) is given the last one's time.
+     */
+    private void record(IrcSession s, long time, byte type, String target, String nick, String text){
+        HostLog h = sessions.get(s.id());
+        if(h != null && target != null && nick != null){
+            synchronized(h){
+                if(h.closed){return;} // its last session disconnected meanwhile
+                h.lastTime = Math.max(h.lastTime, Math.min(time, System.currentTimeMillis()));
+                h.log.record(h.lastTime, type, target, nick, text);
+            }
+        }
+    }
+
+    /**
+     * closes every chat log that is open
+     */
+    public synchronized void close(){
+        for(HostLog h : logs.values()){
+            close(h);
+        }
+        logs.clear();
+        sessions.clear();
+    }
+
+    private static void close(HostLog h){
+        synchronized(h){
+            h.closed = true;
+            try{
+                h.log.close();
+            }catch(IOException e){
+                System.out.println("Failed closing chat log "+ e);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks for the client, run as one suite alongside ParserBenchmark and
+ * DispatchBenchmark (which cover parsing and command dispatch):
+ *
+ *  - lookup: finding a text window for a target, the old linear search of
+ *    a window list against TargetRegistry
+ *  - send: queueing a line and taking it for writing (OutboundQueue), as
+ *    a String and cut and encoded by MessageSplitter, with the bytes
+ *    allocated per line
+ *  - rules: checking a message against hundreds of ignore masks, keywords
+ *    and expressions (MessageRules)
+ *  - end to end: a session on a loopback FakeIrcServer receiving a channel
+ *    flood, a netsplit, a NAMES burst and a LIST burst, through the same
+ *    read, parse, session and dispatch path the client uses (everything
+ *    but Swing). Reports lines per second, and for the flood the latency
+ *    from the server writing each line to its handler running.
+ *
+ * Run with: java ClientBenchmark [linesPerSecond]   (0, the default, is as
+ * fast as possible; a rate shows latency under a steady load instead)
+ */
+public class ClientBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int LOOKUPS_PER_ROUND = 2_000_000;
+    private static final int SENDS_PER_ROUND = 2_000_000;
+    private static final int CHECKS_PER_ROUND = 500_000;
+    private static final String CHANNEL = "#bench";
+
+    static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        lookup();
+        send();
+        rules();
+        endToEnd(rate);
+    }
+
+    private static void lookup(){
+        String[] targets = new String[60];
+        for(int i = 0; i < targets.length; i++){
+            targets[i] = i % 3 == 0 ? "nick" + i : "#Channel" + i;
+        }
+        String[] asked = new String[targets.length];
+        for(int i = 0; i < targets.length; i++){asked[i] = targets[i].toLowerCase(Locale.ROOT);}
+        List<String> windows = new ArrayList<String>(Arrays.asList(targets));
+        TargetRegistry<String> registry = new TargetRegistry<String>(TargetRegistry.DEFAULT_MAX_QUERIES, t -> t, t -> {});
+        for(String t : targets){registry.getOrCreate(t);}
+        for(int r = -3; r < ROUNDS; r++){ // 3 warmup rounds
+            long t0 = System.nanoTime();
+            for(int i = 0; i < LOOKUPS_PER_ROUND; i++){
+                String want = asked[i % asked.length];
+                for(String w : windows){
+                    if(w.equalsIgnoreCase(want)){sink += w.length(); break;}
+                }
+            }
+            long t1 = System.nanoTime();
+            for(int i = 0; i < LOOKUPS_PER_ROUND; i++){
+                sink += registry.getOrCreate(asked[i % asked.length]).length();
+            }
+            long t2 = System.nanoTime();
+            if(r >= 0){
+                System.out.printf("lookup round %d: window list %.1f ns, TargetRegistry %.1f ns%n",
+                    r, (t1 - t0) / (double)LOOKUPS_PER_ROUND, (t2 - t1) / (double)LOOKUPS_PER_ROUND);
+            }
+        }
+    }
+
+    private static void send(){
+        OutboundQueue queue = new OutboundQueue(Integer.MAX_VALUE / 4, 1); // pacing out of the way
+        List<java.nio.ByteBuffer> taken = new ArrayList<java.nio.ByteBuffer>(64);
+        String text = "a message of a usual sort of length";
+        for(int r = -3; r < ROUNDS; r++){
+            long a0 = allocated();
+            long t0 = System.nanoTime();
+            for(int i = 0; i < SENDS_PER_ROUND; i++){
+                queue.add("PRIVMSG " + CHANNEL + " :" + text);
+                if((i & 63) == 63){
+                    queue.take(taken, 64, System.nanoTime());
+                    sink += taken.size();
+                    taken.clear();
+                }
+            }
+            long t1 = System.nanoTime();
+            long a1 = allocated();
+            for(int i = 0; i < SENDS_PER_ROUND; i++){
+                int end;
+                for(int j = MessageSplitter.start(text, 0); j < text.length(); j = MessageSplitter.next(text, end)){
+                    end = MessageSplitter.end(text, j, 400);
+                    queue.add("PRIVMSG", CHANNEL, text, j, end);
+                }
+                if((i & 63) == 63){
+                    queue.take(taken, 64, System.nanoTime());
+                    sink += taken.size();
+                    taken.clear();
+                }
+            }
+            long t2 = System.nanoTime();
+            long a2 = allocated();
+            if(r >= 0){
+                System.out.printf("send round %d: queue and take %.1f ns/line (%d bytes), split and encode %.1f ns/line (%d bytes)%n",
+                    r, (t1 - t0) / (double)SENDS_PER_ROUND, (a1 - a0) / SENDS_PER_ROUND,
+                    (t2 - t1) / (double)SENDS_PER_ROUND, (a2 - a1) / SENDS_PER_ROUND);
+            }
+        }
+    }
+
+    /**
+     * bytes this thread has allocated so far (0 if the JVM can't tell)
+     */
+    private static long allocated(){
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void rules(){
+        MessageRules rules = new MessageRules();
+        Random random = new Random(42);
+        for(int i = 0; i < 300; i++){
+            rules.ignore(i % 2 == 0 ? "spammer" + i : "*!*@host" + i + ".example.net");
+            rules.keyword("word" + i, i % 10 == 0 ? MessageRules.DROP : MessageRules.HIGHLIGHT);
+        }
+        for(int i = 0; i < 50; i++){
+            rules.pattern("buy\\s+thing" + i, MessageRules.DROP);
+        }
+        String[] sources = new String[64];
+        String[] texts = new String[64];
+        for(int i = 0; i < sources.length; i++){
+            sources[i] = "nick" + i + "!user@host" + random.nextInt(1000) + ".example.org";
+            texts[i] = "an everyday sort of message, number " + i + ", of the usual length" + (i % 16 == 0 ? " word" + i : "");
+        }
+        for(int r = -3; r < ROUNDS; r++){
+            long t0 = System.nanoTime();
+            for(int i = 0; i < CHECKS_PER_ROUND; i++){
+                sink += rules.check(sources[i & 63], texts[i & 63]);
+            }
+            long t1 = System.nanoTime();
+            if(r >= 0){
+                System.out.printf("rules round %d: %.1f ns/message%n", r, (t1 - t0) / (double)CHECKS_PER_ROUND);
+            }
+        }
+    }
+
+    private static void endToEnd(int rate) throws Exception {
+        FakeIrcServer server = new FakeIrcServer(0);
+        SessionManager sessions = new SessionManager(1);
+        Histogram latency = new Histogram();
+        BlockingQueue<String> done = new LinkedBlockingQueue<String>();
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        dispatcher.register("PRIVMSG", (s, msg) -> {
+            String text = msg.last();
+            int space = text.indexOf(' ');
+            try{
+                latency.record(System.nanoTime() - Long.parseLong(space < 0 ? text : text.substring(0, space)));
+            }catch(NumberFormatException e){
+                // not stamped
+            }
+        });
+        dispatcher.register("NOTICE", (s, msg) -> {
+            if(msg.last().startsWith("END")){done.add(msg.last());}
+        });
+        SessionListener listener = new SessionListener(){
+            public void loggedIn(IrcSession s){}
+            public void loginFailed(IrcSession s, String reason){done.add(reason);}
+            public void lineReceived(IrcSession s, IrcMessage msg){dispatcher.dispatch(s, msg);}
+            public void disconnected(IrcSession s, IOException cause){done.add("closed " + cause);}
+        };
+        IrcSession session = sessions.open("127.0.0.1", server.getPort(), "bench", "Benchmark", listener);
+        while(!session.isLoggedIn()){Thread.sleep(10);}
+        session.send("JOIN " + CHANNEL);
+        while(session.members().count(CHANNEL) < 1){Thread.sleep(10);}
+
+        for(int r = 0; r < 2; r++){ // the first round warms up
+            String round = r == 0 ? "warmup " : "";
+            latency.reset();
+            run(server, done, round + "flood", TrafficGenerator.flood(CHANNEL, 500, 200_000), rate);
+            System.out.printf("  latency p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.max() / 1e3);
+            run(server, done, round + "netsplit", TrafficGenerator.netsplit(CHANNEL, 20_000), rate);
+            run(server, done, round + "names", TrafficGenerator.namesBurst("bench", CHANNEL, 20_000), rate);
+            System.out.println("  members now " + session.members().count(CHANNEL));
+            run(server, done, round + "list", TrafficGenerator.listBurst("bench", 50_000), rate);
+            System.out.println("  channels listed " + session.directory().cached().size());
+        }
+        sessions.shutdown();
+        server.close();
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * replays the lines, then a marker, and waits for the session to have
+     * handled them all
+     */
+    private static void run(FakeIrcServer server, BlockingQueue<String> done, String name,
+                            List<String> lines, int rate) throws Exception {
+        List<String> all = new ArrayList<String>(lines);
+        all.add(":" + FakeIrcServer.NAME + " NOTICE bench :END " + name);
+        long t0 = System.nanoTime();
+        server.replay(all, rate);
+        String end = done.poll(5, TimeUnit.MINUTES);
+        long t1 = System.nanoTime();
+        if(end == null || !end.startsWith("END")){
+            throw new IllegalStateException(name + " did not finish: " + end);
+        }
+        System.out.printf("%s: %d lines in %.1f ms, %.0f lines/s%n",
+            name, lines.size(), (t1 - t0) / 1e6, lines.size() / ((t1 - t0) / 1e9));
+    }
+}
@@ -0,0 +1,207 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.ObjectName;
+
+/**
+ * The client's counters and timings, recorded on the hot paths (reading,
+ * parsing, dispatching, writing, rendering) as cheaply as possible:
+ * counters are LongAdders, so threads do not contend on one cache line, and
+ * timings go into lock-free Histograms. Queue depths are read only when
+ * asked for.
+ *
+ * There is one set for the whole client, METRICS. start() makes it visible
+ * over JMX and prints a snapshot every interval that saw any traffic.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+    public static final ClientMetrics METRICS = new ClientMetrics();
+    public static final int SNAPSHOT_SECONDS = 60;
+
+    public final LongAdder linesIn = new LongAdder();
+    public final LongAdder linesOut = new LongAdder();
+    public final LongAdder connects = new LongAdder();
+    public final LongAdder disconnects = new LongAdder(); // ones we did not ask for
+    public final LongAdder reconnects = new LongAdder();
+    public final Histogram parseNanos = new Histogram();
+    public final Histogram pingNanos = new Histogram();
+    public final Histogram renderNanos = new Histogram();
+    private final Map<String, Histogram> dispatchNanos = new ConcurrentSkipListMap<String, Histogram>();
+    private final List<IntSupplier> queueDepths = new CopyOnWriteArrayList<IntSupplier>();
+    private final List<IntSupplier> renderBacklogs = new CopyOnWriteArrayList<IntSupplier>();
+
+    private ScheduledExecutorService snapshots;
+    private long lastIn, lastOut, lastAt = System.nanoTime();
+    private volatile double inRate, outRate;
+
+    private ClientMetrics(){
+    }
+
+    /**
+     * the histogram for the time taken to handle a command, made the first
+     * time it is asked for (at registration, so not on the hot path)
+     */
+    public Histogram dispatch(String command){
+        return dispatchNanos.computeIfAbsent(command, c -> new Histogram());
+    }
+
+    /**
+     * adds a source of outbound lines waiting (e.g. a SessionManager's)
+     */
+    public void watchQueueDepth(IntSupplier depth){
+        queueDepths.add(depth);
+    }
+
+    /**
+     * removes a source added with watchQueueDepth (e.g. when its
+     * SessionManager shuts down)
+     */
+    public void unwatchQueueDepth(IntSupplier depth){
+        queueDepths.remove(depth);
+    }
+
+    /**
+     * adds a source of text windows waiting to be drawn
+     */
+    public void watchRenderBacklog(IntSupplier backlog){
+        renderBacklogs.add(backlog);
+    }
+
+    /**
+     * registers with the platform MBean server and starts the snapshots;
+     * only the first call does anything
+     */
+    public synchronized void start(int intervalSeconds){
+        if(snapshots != null){return;}
+        try{
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("irc-chat:type=ClientMetrics"));
+        }catch(Exception e){ // JMX is a convenience: carry on without it
+            System.out.println("Failed registering metrics " + e);
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "irc-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshots.scheduleAtFixedRate(this::snapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * works out the line rates since the last snapshot and prints a summary
+     * if anything happened
+     */
+    synchronized void snapshot(){
+        long now = System.nanoTime();
+        long in = linesIn.sum();
+        long out = linesOut.sum();
+        double seconds = Math.max(1e-9, (now - lastAt) / 1e9);
+        inRate = (in - lastIn) / seconds;
+        outRate = (out - lastOut) / seconds;
+        boolean active = in != lastIn || out != lastOut;
+        lastIn = in;
+        lastOut = out;
+        lastAt = now;
+        if(active){
+            System.out.println(this);
+        }
+    }
+
+    public String toString(){
+        StringBuilder sb = new StringBuilder("metrics:");
+        sb.append(String.format(" in %d (%.1f/s) out %d (%.1f/s)", getLinesIn(), inRate, getLinesOut(), outRate));
+        sb.append(" parse p50/p99/max ").append(getParseNanosP50()).append('/').append(getParseNanosP99())
+          .append('/').append(getParseNanosMax()).append("ns");
+        sb.append(" queued ").append(getOutboundQueueDepth());
+        sb.append(" ping p50/p99 ").append(getPingMillisP50()).append('/').append(getPingMillisP99()).append("ms");
+        sb.append(" render backlog ").append(getRenderBacklog()).append(" p99 ").append(getRenderNanosP99()).append("ns");
+        sb.append(" connects ").append(getConnects()).append(" drops ").append(getDisconnects())
+          .append(" reconnects ").append(getReconnects());
+        for(Map.Entry<String, Histogram> e : dispatchNanos.entrySet()){
+            if(e.getValue().count() > 0){
+                sb.append("\n  ").append(e.getKey()).append(' ').append(e.getValue().count())
+                  .append(" p99 ").append(e.getValue().percentile(99)).append("ns");
+            }
+        }
+        return sb.toString();
+    }
+
+    public long getLinesIn(){
+        return linesIn.sum();
+    }
+
+    public long getLinesOut(){
+        return linesOut.sum();
+    }
+
+    public double getLinesInPerSecond(){
+        return inRate;
+    }
+
+    public double getLinesOutPerSecond(){
+        return outRate;
+    }
+
+    public long getParseNanosP50(){
+        return parseNanos.percentile(50);
+    }
+
+    public long getParseNanosP99(){
+        return parseNanos.percentile(99);
+    }
+
+    public long getParseNanosMax(){
+        return parseNanos.max();
+    }
+
+    public Map<String, Long> getDispatchNanosP99(){
+        Map<String, Long> p99 = new TreeMap<String, Long>();
+        for(Map.Entry<String, Histogram> e : dispatchNanos.entrySet()){
+            p99.put(e.getKey(), e.getValue().percentile(99));
+        }
+        return p99;
+    }
+
+    public int getOutboundQueueDepth(){
+        int n = 0;
+        for(IntSupplier s : queueDepths){n += s.getAsInt();}
+        return n;
+    }
+
+    public long getPingMillisP50(){
+        return pingNanos.percentile(50) / 1000000L;
+    }
+
+    public long getPingMillisP99(){
+        return pingNanos.percentile(99) / 1000000L;
+    }
+
+    public int getRenderBacklog(){
+        int n = 0;
+        for(IntSupplier s : renderBacklogs){n += s.getAsInt();}
+        return n;
+    }
+
+    public long getRenderNanosP99(){
+        return renderNanos.percentile(99);
+    }
+
+    public long getConnects(){
+        return connects.sum();
+    }
+
+    public long getDisconnects(){
+        return disconnects.sum();
+    }
+
+    public long getReconnects(){
+        return reconnects.sum();
+    }
+
+    public void resetHistograms(){
+        parseNanos.reset();
+        pingNanos.reset();
+        renderNanos.reset();
+        for(Histogram h : dispatchNanos.values()){h.reset();}
+    }
+}
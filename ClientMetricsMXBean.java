@@ -0,0 +1,33 @@
+import java.util.Map;
+
+/**
+ * What ClientMetrics shows over JMX (e.g. in jconsole, under irc-chat).
+ * Times are in nanoseconds unless the name says otherwise; rates are over
+ * the last snapshot interval.
+ */
+public interface ClientMetricsMXBean {
+    long getLinesIn();
+    long getLinesOut();
+    double getLinesInPerSecond();
+    double getLinesOutPerSecond();
+
+    long getParseNanosP50();
+    long getParseNanosP99();
+    long getParseNanosMax();
+
+    /** the 99th percentile time to handle each command */
+    Map<String, Long> getDispatchNanosP99();
+
+    int getOutboundQueueDepth();
+    long getPingMillisP50();
+    long getPingMillisP99();
+    int getRenderBacklog();
+    long getRenderNanosP99();
+
+    long getConnects();
+    long getDisconnects();
+    long getReconnects();
+
+    /** clears the histograms (the counters keep counting) */
+    void resetHistograms();
+}
@@ -0,0 +1,194 @@
+import java.util.*;
+
+/**
+ * Routes server messages to the handlers registered for their command, in
+ * constant time. Numeric replies index straight into a dense array of 1000
+ * slots; named commands are found in a small open addressing table hashed
+ * from the command characters in the message buffer, so no String is made
+ * per message. Several handlers may register for the same command and are
+ * called in the order they were registered. Messages nobody handles go to
+ * the fallback handler, if there is one. The time each command's handlers
+ * take is recorded in ClientMetrics.
+ *
+ * Handlers may be registered at any time, from any thread: registering
+ * copies the tables and publishes the copy through a volatile field, so
+ * dispatch always sees a complete set without taking a lock.
+ */
+public class CommandDispatcher {
+    private static final int TABLE_SIZE = 64;     // power of two, well above the named commands used
+
+    /**
+     * the handler tables; never changed once published, so dispatch reads
+     * them without locking
+     */
+    private static final class Tables {
+        final MessageHandler[] numerics;
+        final Histogram[] numericTimes;
+        final String[] names;
+        final MessageHandler[] named;
+        final Histogram[] namedTimes;
+        final int namedCount;
+        final MessageHandler fallback;
+
+        Tables(MessageHandler[] numerics, Histogram[] numericTimes, String[] names, MessageHandler[] named,
+               Histogram[] namedTimes, int namedCount, MessageHandler fallback){
+            this.numerics = numerics;
+            this.numericTimes = numericTimes;
+            this.names = names;
+            this.named = named;
+            this.namedTimes = namedTimes;
+            this.namedCount = namedCount;
+            this.fallback = fallback;
+        }
+    }
+
+    private final Histogram fallbackTimes = ClientMetrics.METRICS.dispatch("other");
+    private volatile Tables tables = new Tables(new MessageHandler[1000], new Histogram[1000],
+        new String[TABLE_SIZE], new MessageHandler[TABLE_SIZE], new Histogram[TABLE_SIZE], 0, null);
+
+    /**
+     * registers a handler for a command name (case-insensitive) or a three
+     * digit numeric given as a String, e.g. "PRIVMSG" or "353"
+     */
+    public synchronized void register(String command, MessageHandler h){
+        if(command.length() == 3 && Character.isDigit(command.charAt(0))
+           && Character.isDigit(command.charAt(1)) && Character.isDigit(command.charAt(2))){
+            register(Integer.parseInt(command), h);
+            return;
+        }
+        Tables t = tables;
+        String name = command.toUpperCase(Locale.ROOT);
+        String[] names = t.names.clone();
+        MessageHandler[] named = t.named.clone();
+        Histogram[] namedTimes = t.namedTimes.clone();
+        int namedCount = t.namedCount;
+        int slot = slot(names, name);
+        if(names[slot] == null){
+            if(namedCount >= TABLE_SIZE / 2){
+                throw new IllegalStateException("Too many commands registered");
+            }
+            names[slot] = name;
+            namedTimes[slot] = ClientMetrics.METRICS.dispatch(name);
+            namedCount++;
+        }
+        named[slot] = chain(named[slot], h);
+        tables = new Tables(t.numerics, t.numericTimes, names, named, namedTimes, namedCount, t.fallback);
+    }
+
+    /**
+     * registers a handler for a numeric reply, e.g. 353
+     */
+    public synchronized void register(int numeric, MessageHandler h){
+        Tables t = tables;
+        if(numeric < 0 || numeric >= t.numerics.length){
+            throw new IllegalArgumentException("Not a numeric reply: " + numeric);
+        }
+        MessageHandler[] numerics = t.numerics.clone();
+        Histogram[] numericTimes = t.numericTimes.clone();
+        numerics[numeric] = chain(numerics[numeric], h);
+        numericTimes[numeric] = ClientMetrics.METRICS.dispatch(String.format("%03d", numeric));
+        tables = new Tables(numerics, numericTimes, t.names, t.named, t.namedTimes, t.namedCount, t.fallback);
+    }
+
+    /**
+     * the handler for messages that have no handler of their own
+     */
+    public synchronized void setFallback(MessageHandler h){
+        Tables t = tables;
+        tables = new Tables(t.numerics, t.numericTimes, t.names, t.named, t.namedTimes, t.namedCount, h);
+    }
+
+    /**
+     * Calls the handlers for msg's command; returns false if there were none
+     * (after calling the fallback, if set).
+     */
+    public boolean dispatch(IrcSession s, IrcMessage msg){
+        Tables t = tables;
+        int i = indexOf(t, msg);
+        int n = t.numerics.length;
+        MessageHandler h = i < 0 ? null : i < n ? t.numerics[i] : t.named[i - n];
+        long start = System.nanoTime();
+        if(h != null){
+            h.handle(s, msg);
+            (i < n ? t.numericTimes[i] : t.namedTimes[i - n]).record(System.nanoTime() - start);
+            return true;
+        }
+        if(t.fallback != null){
+            t.fallback.handle(s, msg);
+            fallbackTimes.record(System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    /**
+     * the handler for msg's command, or null
+     */
+    MessageHandler lookup(IrcMessage msg){
+        Tables t = tables;
+        int i = indexOf(t, msg);
+        if(i < 0){return null;}
+        return i < t.numerics.length ? t.numerics[i] : t.named[i - t.numerics.length];
+    }
+
+    /**
+     * where msg's handler is: its numeric, or numerics.length plus its slot
+     * in the named table; -1 if it has none. Command names are matched
+     * without regard to case, as they were registered in upper case.
+     */
+    private static int indexOf(Tables t, IrcMessage msg){
+        int numeric = msg.numeric();
+        if(numeric >= 0){
+            return t.numerics[numeric] == null ? -1 : numeric;
+        }
+        char[] buf = msg.buffer();
+        int start = msg.commandStart();
+        int end = msg.commandEnd();
+        int hash = 0;
+        for(int i = start; i < end; i++){
+            hash = 31 * hash + upper(buf[i]);
+        }
+        for(int slot = mix(hash); ; slot = (slot + 1) & (TABLE_SIZE - 1)){
+            String name = t.names[slot];
+            if(name == null){return -1;}
+            if(matches(buf, start, end, name)){return t.numerics.length + slot;}
+        }
+    }
+
+    /**
+     * whether buf[start, end) is name, ignoring the case of ASCII letters
+     */
+    private static boolean matches(char[] buf, int start, int end, String name){
+        if(end - start != name.length()){return false;}
+        for(int i = start; i < end; i++){
+            if(upper(buf[i]) != name.charAt(i - start)){return false;}
+        }
+        return true;
+    }
+
+    private static char upper(char c){
+        return c >= 'a' && c <= 'z' ? (char)(c - ('a' - 'A')) : c;
+    }
+
+    /**
+     * the first free slot or the slot already holding name
+     */
+    private static int slot(String[] names, String name){
+        int slot = mix(name.hashCode());
+        while(names[slot] != null && !names[slot].equals(name)){
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return slot;
+    }
+
+    private static int mix(int hash){
+        return (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+    }
+
+    private static MessageHandler chain(MessageHandler first, MessageHandler second){
+        if(first == null){return second;}
+        return (s, msg) -> {
+            first.handle(s, msg);
+            second.handle(s, msg);
+        };
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/**
+ * Receives the events of an IrcConnection. All methods are called on the
+ * connection's event loop thread, so they should not block.
+ */
+public interface ConnectionHandler {
+    /**
+     * the TCP connection is established and lines can be sent
+     */
+    void connected(IrcConnection c);
+
+    /**
+     * a line arrived from the server. The message is reused for the next
+     * line, so anything kept must be copied out of it before returning.
+     */
+    void lineReceived(IrcConnection c, IrcMessage msg);
+
+    /**
+     * the connection is closed; cause is null if it was closed on purpose
+     */
+    void disconnected(IrcConnection c, IOException cause);
+}
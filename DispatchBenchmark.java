@@ -0,0 +1,123 @@
+/**
+ * Micro benchmark comparing the old command.equals(...) chain from
+ * listenToServer with CommandDispatcher, on a traffic mix that is mostly
+ * channel messages with joins, parts, quits, pings and NAMES/LIST bursts.
+ * Like ParserBenchmark it is a plain main() harness with warmup rounds.
+ *
+ * Run with: java DispatchBenchmark [rounds]
+ */
+public class DispatchBenchmark {
+    private static final int MESSAGES_PER_ROUND = 2_000_000;
+
+    /** the traffic mix: each line appears as often as its weight */
+    static final Object[][] MIX = {
+        {":nick!user@host PRIVMSG #channel :hello there", 60},
+        {":alice!a@host JOIN #channel", 6},
+        {":bob!b@host PART #channel :bye", 5},
+        {":dave!d@host QUIT :Quit: leaving", 5},
+        {"PING :irc.example.com", 2},
+        {":op!o@host MODE #channel +v alice", 2},
+        {":irc.example.com 353 me = #channel :@op +voice alice bob carol", 8},
+        {":irc.example.com 366 me #channel :End of /NAMES list.", 1},
+        {":irc.example.com 322 me #channel 42 :a topic", 8},
+        {":irc.example.com 303 me :alice", 1},
+        {":irc.example.com NOTICE me :server notice", 2},
+    };
+
+    static long sink;
+    static long count;
+
+    public static void main(String[] args){
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        IrcMessage[] traffic = traffic();
+        CommandDispatcher dispatcher = dispatcher();
+        for(int i = 0; i < 3; i++){ // warmup
+            chain(traffic);
+            table(dispatcher, traffic);
+        }
+        for(int i = 0; i < rounds; i++){
+            long t0 = System.nanoTime();
+            chain(traffic);
+            long t1 = System.nanoTime();
+            table(dispatcher, traffic);
+            long t2 = System.nanoTime();
+            System.out.printf("round %d: if/else chain %.1f ns/msg, dispatch table %.1f ns/msg%n",
+                i, (t1 - t0) / (double)MESSAGES_PER_ROUND, (t2 - t1) / (double)MESSAGES_PER_ROUND);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * parses the mix into messages, shuffled so branch prediction sees a
+     * realistic order
+     */
+    static IrcMessage[] traffic(){
+        int total = 0;
+        for(Object[] m : MIX){total += (Integer)m[1];}
+        IrcMessage[] traffic = new IrcMessage[total * 16];
+        int n = 0;
+        for(int r = 0; r < 16; r++){
+            for(Object[] m : MIX){
+                for(int i = 0; i < (Integer)m[1]; i++){
+                    traffic[n] = new IrcMessage();
+                    traffic[n++].parse((String)m[0]);
+                }
+            }
+        }
+        java.util.Random random = new java.util.Random(42);
+        for(int i = traffic.length - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            IrcMessage t = traffic[i];
+            traffic[i] = traffic[j];
+            traffic[j] = t;
+        }
+        return traffic;
+    }
+
+    static CommandDispatcher dispatcher(){
+        CommandDispatcher d = new CommandDispatcher();
+        String[] names = {"SQUIT", "QUIT", "PING", "MODE", "PART", "JOIN", "PRIVMSG"};
+        for(int i = 0; i < names.length; i++){
+            int id = i;
+            d.register(names[i], (s, msg) -> count += id);
+        }
+        int[] numerics = {322, 321, 323, 353, 366, 303};
+        for(int i = 0; i < numerics.length; i++){
+            int id = names.length + i;
+            d.register(numerics[i], (s, msg) -> count += id);
+        }
+        d.setFallback((s, msg) -> count += 99);
+        return d;
+    }
+
+    private static void table(CommandDispatcher d, IrcMessage[] traffic){
+        for(int i = 0; i < MESSAGES_PER_ROUND; i++){
+            d.dispatch(null, traffic[i % traffic.length]);
+        }
+        sink += count;
+    }
+
+    /**
+     * the order of comparisons listenToServer used before the dispatcher
+     */
+    private static void chain(IrcMessage[] traffic){
+        for(int i = 0; i < MESSAGES_PER_ROUND; i++){
+            String command = traffic[i % traffic.length].command();
+            if(command.equals("SQUIT")){count += 0;}
+            else if(command.equals("QUIT")){count += 1;}
+            else if(command.equals("PING")){count += 2;}
+            else if(command.equals("MODE")){count += 3;}
+            else if(command.equals("PART")){count += 4;}
+            else if(command.equals("JOIN")){count += 5;}
+            else if(command.equals("PRIVMSG")){count += 6;}
+            else if(command.equals("322")){count += 7;}
+            else if(command.equals("321")){count += 8;}
+            else if(command.equals("323")){count += 9;}
+            else if(command.equals("353")){count += 10;}
+            else if(command.equals("366")){count += 11;}
+            else if(command.equals("303")){count += 12;}
+            else{count += 99;}
+        }
+        sink += count;
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+/**
+ * A small in-process IRC server for trying the client without a network.
+ * It understands enough of the protocol for the client's buttons: login
+ * (NICK/USER, with CAP negotiation), PING, JOIN/PART with NAMES, PRIVMSG
+ * between its clients, LIST, ISON and QUIT. A client that asks for batch
+ * gets its NAMES replies as a batch, and one that asks for server-time gets
+ * time tags on messages. SASL PLAIN works for accounts added with
+ * addAccount, and EXTERNAL for clients that show a certificate.
+ *
+ * Given an SSLContext the server speaks TLS (see TlsLayer.context for one
+ * made from a self-signed key store). Every line a client sends is recorded, and lines can
+ * be pushed to all clients with broadcast(), or at a steady rate with
+ * replay() (see TrafficGenerator for recorded and synthetic traffic).
+ *
+ * Run with: java FakeIrcServer [-tls keystore.p12 password] [port [file linesPerSecond]]
+ *   (then point the client at localhost; with a file, its lines are replayed
+ *   to every client once the first one has logged in)
+ */
+public class FakeIrcServer implements Runnable {
+    public static final String NAME = "fake.irc";
+    public static final String CAPS = "batch server-time message-tags multi-prefix away-notify sasl=PLAIN,EXTERNAL";
+    private static final int BACKLOG = 1024;  // room for many clients connecting at once
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Client> clients = new ConcurrentHashMap<String, Client>();
+    private final Map<String, Set<String>> channels = new ConcurrentHashMap<String, Set<String>>();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+    private final Map<String, String> accounts = new ConcurrentHashMap<String, String>(); // SASL PLAIN passwords
+    private volatile boolean running = true;
+
+    /**
+     * listens on the given port (0 picks a free one, see getPort)
+     */
+    public FakeIrcServer(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * listens for TLS connections made with the context (plain text if null)
+     */
+    public FakeIrcServer(int port, SSLContext tls) throws IOException {
+        if(tls != null){
+            SSLServerSocket s = (SSLServerSocket)tls.getServerSocketFactory().createServerSocket();
+            s.setWantClientAuth(true); // for SASL EXTERNAL
+            serverSocket = s;
+        }else{
+            serverSocket = new ServerSocket();
+        }
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        Thread t = new Thread(this, "fake-irc-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        SSLContext tls = null;
+        if(args.length > 2 && args[0].equals("-tls")){
+            tls = TlsLayer.context(Paths.get(args[1]), args[2].toCharArray());
+            args = Arrays.copyOfRange(args, 3, args.length);
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : tls != null ? TlsLayer.TLS_PORT : 6667;
+        FakeIrcServer server = new FakeIrcServer(port, tls);
+        System.out.println("Fake IRC server on port " + server.getPort());
+        if(args.length > 2){
+            List<String> lines = TrafficGenerator.recorded(Paths.get(args[1]));
+            int rate = Integer.parseInt(args[2]);
+            Thread replayer = new Thread(() -> {
+                try{
+                    while(server.clientCount() == 0){Thread.sleep(100);}
+                    long sent = server.replay(lines, rate);
+                    System.out.println("Replayed " + sent + " lines");
+                }catch(InterruptedException e){
+                    // stopping
+                }
+            }, "fake-irc-replay");
+            replayer.setDaemon(true);
+            replayer.start();
+        }
+        while(true){
+            System.out.println("<< " + server.nextReceived(Long.MAX_VALUE));
+        }
+    }
+
+    /**
+     * lets SASL PLAIN log in to the account with the password
+     */
+    public void addAccount(String account, String password){
+        accounts.put(account, password);
+    }
+
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * the next line sent by any client, waiting up to the given time;
+     * null if none arrived
+     */
+    public String nextReceived(long millis) throws InterruptedException {
+        return received.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * sends a raw line to every connected client
+     */
+    public void broadcast(String line){
+        for(Client c : clients.values()){
+            c.send(line);
+        }
+    }
+
+    /**
+     * writes the characters to every connected client exactly as given (no
+     * CR/LF is added) and flushes them, e.g. to split a line across two
+     * reads
+     */
+    public void writeRaw(String data){
+        for(Client c : clients.values()){
+            c.write(data);
+        }
+    }
+
+    /**
+     * the number of clients that have logged in
+     */
+    public int clientCount(){
+        int n = 0;
+        for(Client c : clients.values()){
+            if(c.registered){n++;}
+        }
+        return n;
+    }
+
+    /**
+     * Sends the lines to every client at the given rate (0 for as fast as
+     * possible), replacing TrafficGenerator.TIME in each with the time it is
+     * sent. Lines due together are written and flushed as one batch, so high
+     * rates are not limited by a flush per line. Returns once all are sent.
+     */
+    public long replay(List<String> lines, int linesPerSecond) throws InterruptedException {
+        long start = System.nanoTime();
+        int i = 0;
+        while(i < lines.size()){
+            int due = lines.size();
+            if(linesPerSecond > 0){
+                long elapsed = System.nanoTime() - start;
+                due = (int)Math.min(lines.size(), elapsed * linesPerSecond / 1000000000L + 1);
+                if(due <= i){
+                    Thread.sleep(1);
+                    continue;
+                }
+            }
+            int end = Math.min(due, i + 1000);
+            List<String> batch = new ArrayList<String>(end - i);
+            String now = Long.toString(System.nanoTime());
+            for(; i < end; i++){
+                batch.add(lines.get(i).replace(TrafficGenerator.TIME, now));
+            }
+            for(Client c : clients.values()){
+                c.send(batch);
+            }
+        }
+        return lines.size();
+    }
+
+    /**
+     * drops every client connection, as if the server had gone away
+     */
+    public void disconnectAll(){
+        for(Client c : clients.values()){
+            c.close();
+        }
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        disconnectAll();
+    }
+
+    public void run(){
+        while(running){
+            try{
+                Socket s = serverSocket.accept();
+                Thread t = new Thread(new Client(s), "fake-irc-client");
+                t.setDaemon(true);
+                t.start();
+            }catch(IOException e){
+                if(running){System.out.println("Fake server accept failed " + e);}
+            }
+        }
+    }
+
+    /**
+     * One connected client, read on its own thread. The fake server is only
+     * a test tool, so it keeps to simple blocking IO.
+     */
+    private class Client implements Runnable {
+        private final Socket socket;
+        private final Writer out;
+        private String nick = "*";
+        private volatile boolean registered = false;
+        private boolean negotiating = false; // CAP LS seen, waiting for CAP END
+        private boolean gotUser = false;
+        private final Set<String> caps = ConcurrentHashMap.newKeySet();
+        private int nextBatch = 0;
+        private String mechanism = null; // the SASL mechanism under way
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        synchronized void send(String line){
+            send(Collections.singletonList(line));
+        }
+
+        /**
+         * writes the lines with a single flush
+         */
+        synchronized void send(List<String> lines){
+            try{
+                for(String line : lines){
+                    out.write(line);
+                    out.write("\r\n");
+                }
+                out.flush();
+            }catch(IOException e){
+                close();
+            }
+        }
+
+        synchronized void write(String data){
+            try{
+                out.write(data);
+                out.flush();
+            }catch(IOException e){
+                close();
+            }
+        }
+
+        void close(){
+            try{
+                socket.close();
+            }catch(IOException e){
+                // already closed
+            }
+        }
+
+        /**
+         * one step of SASL: the mechanism, then the client's response
+         */
+        private void authenticate(String arg){
+            if(mechanism == null){
+                if(arg.equals("PLAIN") || arg.equals("EXTERNAL")){
+                    mechanism = arg;
+                    send("AUTHENTICATE +");
+                }else{
+                    send(":" + NAME + " 908 " + nick + " PLAIN,EXTERNAL :are available SASL mechanisms");
+                    send(":" + NAME + " 904 " + nick + " :SASL authentication failed");
+                }
+                return;
+            }
+            String account = null;
+            if(mechanism.equals("PLAIN")){
+                String[] parts = new String(Base64.getDecoder().decode(arg), StandardCharsets.UTF_8).split("\0", -1);
+                if(parts.length == 3 && parts[2].equals(accounts.get(parts[1]))){account = parts[1];}
+            }else if(socket instanceof SSLSocket){
+                try{
+                    Object peer = ((SSLSocket)socket).getSession().getPeerPrincipal();
+                    account = peer.toString();
+                }catch(SSLPeerUnverifiedException e){
+                    // no certificate
+                }
+            }
+            mechanism = null;
+            if(account != null){
+                send(":" + NAME + " 900 " + nick + " " + source() + " " + account + " :You are now logged in as " + account);
+                send(":" + NAME + " 903 " + nick + " :SASL authentication successful");
+            }else{
+                send(":" + NAME + " 904 " + nick + " :SASL authentication failed");
+            }
+        }
+
+        /**
+         * sends the welcome once both USER and (if it was started) CAP END
+         * have arrived
+         */
+        private void register(){
+            if(registered || negotiating || !gotUser){return;}
+            registered = true;
+            send(":" + NAME + " 001 " + nick + " :Welcome to the fake IRC network " + nick);
+            send(":" + NAME + " 002 " + nick + " :Your host is " + NAME);
+            send(":" + NAME + " 003 " + nick + " :This server was created today");
+            send(":" + NAME + " 004 " + nick + " " + NAME + " fake-1.0 io ov");
+        }
+
+        /**
+         * sends a line from another client, with a time tag if this client
+         * asked for server-time
+         */
+        void relay(String line){
+            if(caps.contains("server-time")){
+                send("@time=" + Instant.now() + " " + line);
+            }else{
+                send(line);
+            }
+        }
+
+        String source(){
+            return nick + "!" + nick + "@localhost";
+        }
+
+        public void run(){
+            IrcMessage msg = new IrcMessage();
+            try{
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while((line = in.readLine()) != null){
+                    received.add(line);
+                    if(msg.parse(line)){
+                        handle(msg);
+                    }
+                }
+            }catch(IOException e){
+                // client went away
+            }finally{
+                clients.remove(nick, this);
+                for(Set<String> members : channels.values()){members.remove(nick);}
+                close();
+            }
+        }
+
+        private void handle(IrcMessage msg){
+            if(msg.isCommand("NICK")){
+                String wanted = msg.param(0);
+                if(clients.containsKey(wanted)){
+                    send(":" + NAME + " 433 " + nick + " " + wanted + " :Nickname is already in use");
+                    return;
+                }
+                clients.remove(nick, this);
+                nick = wanted;
+                clients.put(nick, this);
+            }
+            else if(msg.isCommand("CAP") && msg.paramCount() > 0){
+                String sub = msg.param(0);
+                if(sub.equals("LS")){
+                    negotiating = !registered;
+                    send(":" + NAME + " CAP " + nick + " LS :" + CAPS);
+                }else if(sub.equals("REQ")){
+                    List<String> wanted = Arrays.asList(msg.last().split(" "));
+                    if(Arrays.asList(CAPS.replaceAll("=\\S*", "").split(" ")).containsAll(wanted)){
+                        caps.addAll(wanted);
+                        send(":" + NAME + " CAP " + nick + " ACK :" + msg.last());
+                    }else{
+                        send(":" + NAME + " CAP " + nick + " NAK :" + msg.last());
+                    }
+                }else if(sub.equals("END")){
+                    negotiating = false;
+                    register();
+                }
+            }
+            else if(msg.isCommand("AUTHENTICATE") && msg.paramCount() > 0 && caps.contains("sasl")){
+                authenticate(msg.param(0));
+            }
+            else if(msg.isCommand("USER") && !registered){
+                gotUser = true;
+                register();
+            }
+            else if(msg.isCommand("PING")){
+                send(":" + NAME + " PONG " + NAME + " :" + msg.last());
+            }
+            else if(msg.isCommand("JOIN")){
+                for(String chan : msg.param(0).split(",")){
+                    Set<String> members = channels.computeIfAbsent(chan, k -> ConcurrentHashMap.<String>newKeySet());
+                    members.add(nick);
+                    toChannel(chan, ":" + source() + " JOIN " + chan, null);
+                    if(caps.contains("batch")){
+                        String ref = "n" + nextBatch++;
+                        send(Arrays.asList(
+                            ":" + NAME + " BATCH +" + ref + " names " + chan,
+                            "@batch=" + ref + " :" + NAME + " 353 " + nick + " = " + chan + " :" + String.join(" ", members),
+                            "@batch=" + ref + " :" + NAME + " 366 " + nick + " " + chan + " :End of /NAMES list.",
+                            ":" + NAME + " BATCH -" + ref));
+                    }else{
+                        send(":" + NAME + " 353 " + nick + " = " + chan + " :" + String.join(" ", members));
+                        send(":" + NAME + " 366 " + nick + " " + chan + " :End of /NAMES list.");
+                    }
+                }
+            }
+            else if(msg.isCommand("PART")){
+                String chan = msg.param(0);
+                toChannel(chan, ":" + source() + " PART " + chan + " :" + (msg.paramCount() > 1 ? msg.last() : "Leaving"), null);
+                Set<String> members = channels.get(chan);
+                if(members != null){members.remove(nick);}
+            }
+            else if(msg.isCommand("PRIVMSG") || msg.isCommand("NOTICE")){
+                String target = msg.param(0);
+                String line = ":" + source() + " " + msg.command() + " " + target + " :" + msg.last();
+                if(target.startsWith("#")){
+                    toChannel(target, line, nick);
+                }else{
+                    Client c = clients.get(target);
+                    if(c != null){c.relay(line);}
+                }
+            }
+            else if(msg.isCommand("LIST")){
+                send(":" + NAME + " 321 " + nick + " Channel :Users  Name");
+                for(Map.Entry<String, Set<String>> e : channels.entrySet()){
+                    send(":" + NAME + " 322 " + nick + " " + e.getKey() + " " + e.getValue().size() + " :");
+                }
+                send(":" + NAME + " 323 " + nick + " :End of /LIST");
+            }
+            else if(msg.isCommand("ISON")){
+                StringBuilder online = new StringBuilder();
+                for(int i = 0; i < msg.paramCount(); i++){
+                    for(String n : msg.param(i).split(" ")){
+                        if(clients.containsKey(n)){
+                            if(online.length() > 0){online.append(' ');}
+                            online.append(n);
+                        }
+                    }
+                }
+                send(":" + NAME + " 303 " + nick + " :" + online);
+            }
+            else if(msg.isCommand("QUIT")){
+                for(Map.Entry<String, Set<String>> e : channels.entrySet()){
+                    if(e.getValue().contains(nick)){
+                        toChannel(e.getKey(), ":" + source() + " QUIT :" + (msg.paramCount() > 0 ? msg.last() : "Quit"), nick);
+                    }
+                }
+                close();
+            }
+        }
+
+        /**
+         * sends a line to every member of a channel except the given nick
+         */
+        private void toChannel(String chan, String line, String except){
+            Set<String> members = channels.get(chan);
+            if(members == null){return;}
+            for(String member : members){
+                Client c = clients.get(member);
+                if(c != null && !member.equals(except)){c.relay(line);}
+            }
+        }
+    }
+}
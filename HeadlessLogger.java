@@ -0,0 +1,77 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Logs channels without a display: connects with the headless IrcClient,
+ * joins the channels given, writes everything to the server's ChatLog
+ * (through ChatLogRecorder) and prints it to standard output.
+ *
+ * Run with: java HeadlessLogger host port nick #channel [#channel ...]
+ */
+public class HeadlessLogger implements IrcListener {
+    private final IrcClient client;
+    private final String[] channels;
+    private boolean joined = false;
+
+    public HeadlessLogger(IrcClient client, String[] channels){
+        this.client = client;
+        this.channels = channels;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 4){
+            System.out.println("Usage: java HeadlessLogger host port nick #channel [#channel ...]");
+            return;
+        }
+        String[] channels = new String[args.length - 3];
+        System.arraycopy(args, 3, channels, 0, channels.length);
+        IrcClient client = new IrcClient();
+        ChatLogRecorder recorder = new ChatLogRecorder();
+        client.addListener(recorder);
+        client.addListener(new HeadlessLogger(client, channels));
+        client.connect(args[0], Integer.parseInt(args[1]), args[2], "irc-chat logger");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            client.shutdown();
+            recorder.close();
+        }));
+        Thread.currentThread().join(); // the event loops do the rest
+    }
+
+    public void loggedIn(IrcSession s){
+        System.out.println("Logged in to " + s.host() + " as " + s.nick());
+        if(!joined){ // after a reconnect the session rejoins them itself
+            joined = true;
+            client.join(s, Arrays.asList(channels)); // several to a JOIN, however many there are
+        }
+    }
+
+    public void reconnecting(IrcSession s, IOException cause, long delayMillis){
+        System.out.println("Connection lost (" + cause.getMessage() + "), reconnecting in " + delayMillis + "ms");
+    }
+
+    public void loginFailed(IrcSession s, String reason){
+        System.out.println("Login failed: " + reason);
+        System.exit(1);
+    }
+
+    public void disconnected(IrcSession s, IOException cause){
+        System.out.println("Disconnected" + (cause == null ? "" : ": " + cause));
+        System.exit(cause == null ? 0 : 1);
+    }
+
+    public void message(IrcSession s, String from, String target, String text){
+        System.out.println(target + " <" + from + "> " + text);
+    }
+
+    public void joined(IrcSession s, String channel, String nick){
+        System.out.println(channel + " " + nick + " joined");
+    }
+
+    public void parted(IrcSession s, String channel, String nick, String reason){
+        System.out.println(channel + " " + nick + " left: " + reason);
+    }
+
+    public void quit(IrcSession s, String nick, String reason){
+        System.out.println(nick + " quit: " + reason);
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, lock-free histogram of non-negative values (typically
+ * nanoseconds), in the style of HdrHistogram: each power of two is split
+ * into SUB_BUCKETS equal buckets, so any value is counted to within about
+ * 6% using under 1000 counters, whatever its size. Recording is one bucket
+ * calculation and one atomic increment, with no allocation.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;               // buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value){
+        if(value < 0){value = 0;}
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count(){
+        return count.sum();
+    }
+
+    public long max(){
+        return max.get();
+    }
+
+    public double mean(){
+        long n = count.sum();
+        return n == 0 ? 0 : (double)sum.sum() / n;
+    }
+
+    /**
+     * the value at the percentile (0-100): the top of the bucket holding
+     * it, so never an underestimate; 0 if nothing is recorded
+     */
+    public long percentile(double p){
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){total += counts.get(i);}
+        if(total == 0){return 0;}
+        long rank = Math.max(1, (long)Math.ceil(total * p / 100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= rank){return Math.min(max.get(), upper(i));}
+        }
+        return max.get();
+    }
+
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++){counts.set(i, 0);}
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * values below 2*SUB_BUCKETS have a bucket each; above that the top
+     * SUB_BITS bits after the leading one pick the bucket within its
+     * power of two
+     */
+    static int bucket(long value){
+        if(value < 2 * SUB_BUCKETS){return (int)value;}
+        int exp = 63 - Long.numberOfLeadingZeros(value);                 // >= SUB_BITS + 1
+        int mantissa = (int)(value >>> (exp - SUB_BITS)) - SUB_BUCKETS;  // 0 .. SUB_BUCKETS-1
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * the largest value counted in the bucket
+     */
+    static long upper(int bucket){
+        if(bucket < 2 * SUB_BUCKETS){return bucket;}
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        long width = 1L << (exp - SUB_BITS);
+        return mantissa * width + width - 1;
+    }
+}
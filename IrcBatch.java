@@ -0,0 +1,94 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * An IRCv3 batch: lines the server has marked as belonging together (a
+ * NAMES reply, a chathistory replay, a netsplit...). The session holds a
+ * batch's lines until the server ends it, then applies them to its state
+ * and hands them to its listener together, so a join or a history replay is
+ * one update rather than hundreds.
+ *
+ * Batches opened inside a batch are kept in the outer one, with their own
+ * BATCH lines, so the whole lot arrives as one unit.
+ */
+public class IrcBatch {
+    public static final String NAMES = "names"; // a channel's NAMES reply (353s and the 366)
+
+    private final String ref;
+    private final String type;
+    private final String[] params;
+    private final List<String> lines = new ArrayList<String>();
+
+    IrcBatch(String ref, String type, String[] params){
+        this.ref = ref;
+        this.type = type;
+        this.params = params;
+    }
+
+    /**
+     * reads a "BATCH +ref type [params]" line
+     */
+    static IrcBatch start(IrcMessage msg){
+        String[] params = new String[Math.max(0, msg.paramCount() - 2)];
+        for(int i = 0; i < params.length; i++){
+            params[i] = msg.param(i + 2);
+        }
+        return new IrcBatch(msg.param(0).substring(1), msg.paramCount() > 1 ? msg.param(1) : "", params);
+    }
+
+    /**
+     * the server's name for the batch, used in each line's batch tag
+     */
+    public String ref(){
+        return ref;
+    }
+
+    /**
+     * what the batch holds, e.g. "chathistory" or "netsplit"
+     */
+    public String type(){
+        return type;
+    }
+
+    public int paramCount(){
+        return params.length;
+    }
+
+    /**
+     * a parameter given after the type, e.g. the target of a chathistory
+     */
+    public String param(int i){
+        return params[i];
+    }
+
+    /**
+     * how many lines the batch holds
+     */
+    public int size(){
+        return lines.size();
+    }
+
+    void add(String line){
+        lines.add(line);
+    }
+
+    void clear(){
+        lines.clear();
+    }
+
+    /**
+     * Parses each line in turn into msg and passes it on. msg is reused for
+     * every line, as it is for lines straight from the connection.
+     */
+    public void forEach(IrcMessage msg, Consumer<IrcMessage> action){
+        for(String line : lines){
+            if(msg.parse(line)){
+                action.accept(msg);
+            }
+        }
+    }
+
+    public String toString(){
+        return "batch " + ref + " " + type + " (" + lines.size() + " lines)";
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+
+/**
+ * The client without a user interface: it runs the sessions, answers the
+ * protocol housekeeping (PING) itself, and turns the server's lines into
+ * typed events for any number of IrcListeners. The Swing ChatClient is one
+ * listener; bots and loggers (see HeadlessLogger) can run the same engine
+ * without a display.
+ *
+ * Handlers for extra commands can be added to dispatcher(); they run
+ * alongside the ones that raise the events.
+ *
+ * Every PRIVMSG and NOTICE is checked against the MessageRules first: one
+ * the rules drop raises no event at all, and one they highlight raises
+ * highlighted as well as the usual event.
+ */
+public class IrcClient implements SessionListener {
+    private final SessionManager sessions;
+    private final CommandDispatcher dispatcher = new CommandDispatcher();
+    private final List<IrcListener> listeners = new CopyOnWriteArrayList<IrcListener>();
+    private final MessageRules rules;
+
+    public IrcClient() throws IOException {
+        this(new SessionManager());
+    }
+
+    public IrcClient(SessionManager sessions){
+        this(sessions, new MessageRules());
+    }
+
+    public IrcClient(SessionManager sessions, MessageRules rules){
+        this.sessions = sessions;
+        this.rules = rules;
+        registerHandlers();
+    }
+
+    public void addListener(IrcListener l){
+        listeners.add(l);
+    }
+
+    public void removeListener(IrcListener l){
+        listeners.remove(l);
+    }
+
+    public CommandDispatcher dispatcher(){
+        return dispatcher;
+    }
+
+    public SessionManager sessions(){
+        return sessions;
+    }
+
+    /**
+     * the ignore, highlight and filter rules messages are checked against
+     */
+    public MessageRules rules(){
+        return rules;
+    }
+
+    /**
+     * Sets up which event each message from the server raises. Numerics
+     * and commands without one go to numeric() and other().
+     */
+    private void registerHandlers(){
+        dispatcher.register("SQUIT", (s, msg) -> sessions.close(s)); //quits from server
+        dispatcher.register("PING", (s, msg) -> s.send("PONG" + " :" + msg.last()));
+        dispatcher.register("PONG", IrcClient::ignore); //answers to the session's keepalive PINGs
+        dispatcher.register("MODE", IrcClient::ignore); //read by the session's member lists
+        dispatcher.register("PRIVMSG", (s, msg) -> {
+            if(msg.paramCount() < 2){return;}
+            String text = msg.last();
+            int verdict = rules.check(msg.hasPrefix() ? msg.prefix() : null, text);
+            if(verdict == MessageRules.DROP){return;}
+            String from = msg.nick(), target = msg.param(0);
+            fire(l -> l.message(s, from, target, text));
+            if(verdict == MessageRules.HIGHLIGHT){fire(l -> l.highlighted(s, from, target, text));}
+        });
+        dispatcher.register("NOTICE", (s, msg) -> {
+            if(msg.paramCount() < 2){return;}
+            String text = msg.last();
+            int verdict = rules.check(msg.hasPrefix() ? msg.prefix() : null, text);
+            if(verdict == MessageRules.DROP){return;}
+            String from = msg.hasPrefix() ? msg.nick() : s.host(), target = msg.param(0);
+            fire(l -> l.notice(s, from, target, text));
+            if(verdict == MessageRules.HIGHLIGHT){fire(l -> l.highlighted(s, from, target, text));}
+        });
+        dispatcher.register("JOIN", (s, msg) -> {
+            if(msg.paramCount() < 1){return;}
+            String channel = msg.param(0), nick = msg.nick();
+            fire(l -> l.joined(s, channel, nick));
+        });
+        dispatcher.register("PART", (s, msg) -> {
+            if(msg.paramCount() < 1){return;}
+            String channel = msg.param(0), nick = msg.nick();
+            String reason = msg.paramCount() > 1 ? msg.last() : "";
+            fire(l -> l.parted(s, channel, nick, reason));
+        });
+        dispatcher.register("KICK", (s, msg) -> {
+            if(msg.paramCount() < 2){return;}
+            String channel = msg.param(0), nick = msg.param(1), by = msg.nick();
+            String reason = msg.paramCount() > 2 ? msg.last() : "";
+            fire(l -> l.kicked(s, channel, nick, by, reason));
+        });
+        dispatcher.register("QUIT", (s, msg) -> {
+            String nick = msg.nick(), reason = msg.paramCount() > 0 ? msg.last() : "";
+            fire(l -> l.quit(s, nick, reason));
+        });
+        dispatcher.register("NICK", (s, msg) -> {
+            String from = msg.nick(), to = msg.last();
+            fire(l -> l.nickChanged(s, from, to));
+        });
+        dispatcher.register("AWAY", (s, msg) -> { //away-notify
+            String nick = msg.nick(), reason = msg.paramCount() > 0 && !msg.last().isEmpty() ? msg.last() : null;
+            fire(l -> l.away(s, nick, reason));
+        });
+        dispatcher.register("BATCH", IrcClient::ignore); //batches inside a batch; the session has collected their lines
+        dispatcher.register("TAGMSG", IrcClient::ignore); //tags only, e.g. typing notifications
+        dispatcher.register(5, (s, msg) -> fire(l -> l.supports(s))); //what the server supports
+        dispatcher.register(321, IrcClient::ignore); //the list of channels is collected by the session's directory
+        dispatcher.register(322, IrcClient::ignore);
+        dispatcher.register(323, IrcClient::ignore);
+        dispatcher.register(353, IrcClient::ignore); //names are read by the session's member lists
+        dispatcher.register(366, (s, msg) -> { //end of names list
+            String channel = msg.param(1);
+            int count = s.members().count(channel);
+            fire(l -> l.namesEnd(s, channel, count));
+        });
+        dispatcher.register(303, IrcClient::ignore); //ison replies are read by the session's presence cache
+        dispatcher.setFallback((s, msg) -> {
+            int code = msg.numeric();
+            if(code >= 0){
+                fire(l -> l.numeric(s, code, msg));
+            }else{
+                fire(l -> l.other(s, msg));
+            }
+        });
+    }
+
+    /**
+     * for messages that need nothing done
+     */
+    private static void ignore(IrcSession s, IrcMessage msg){
+        //do nothing
+    }
+
+    /**
+     * tells every listener, one after another; a listener that fails does
+     * not stop the rest hearing about it
+     */
+    private void fire(Consumer<IrcListener> event){
+        for(IrcListener l : listeners){
+            try{
+                event.accept(l);
+            }catch(RuntimeException e){
+                System.out.println("Listener failed " + e);
+            }
+        }
+    }
+
+    /**
+     * opens a session that logs in with the nick and real name given; the
+     * listeners hear whether it worked
+     */
+    public IrcSession connect(String host, int port, String nick, String realname){
+        return sessions.open(host, port, nick, realname, this);
+    }
+
+    /**
+     * opens a session over TLS (made with tls, or plain text if it is null),
+     * authenticating with sasl if it isn't null
+     */
+    public IrcSession connect(String host, int port, SSLContext tls, Sasl sasl, String nick, String realname){
+        return sessions.open(host, port, tls, sasl, nick, realname, this);
+    }
+
+    /**
+     * quits the session; the listeners hear when it is closed
+     */
+    public void disconnect(IrcSession s){
+        sessions.close(s);
+    }
+
+    public void join(IrcSession s, String channel){
+        s.send("JOIN " + channel);
+    }
+
+    /**
+     * joins many channels at once, several to a JOIN line (a session may
+     * be in hundreds)
+     */
+    public void join(IrcSession s, Collection<String> channels){
+        s.join(channels);
+    }
+
+    public void part(IrcSession s, String channel){
+        s.send("PART " + channel);
+    }
+
+    /**
+     * sends a message to a channel or nick; a long or multi-line message
+     * goes as several lines (see IrcSession.sendText)
+     */
+    public void send(IrcSession s, String target, String text){
+        s.sendText("PRIVMSG", target, text);
+        fire(l -> l.sent(s, target, text));
+    }
+
+    /**
+     * Sends a message to a nick if it is online: straight away if the
+     * session already knows it is, otherwise once its ISON check comes
+     * back. If it is not online, the listeners hear noSuchNick instead.
+     */
+    public void sendToUser(IrcSession s, String nick, String text){
+        s.presence().check(nick, online -> {
+            if(online){
+                send(s, nick, text);
+            }else{
+                fire(l -> l.noSuchNick(s, nick));
+            }
+        });
+    }
+
+    /**
+     * closes every session and stops the threads
+     */
+    public void shutdown(){
+        sessions.shutdown();
+    }
+
+    public void loggedIn(IrcSession s){
+        fire(l -> l.loggedIn(s));
+    }
+
+    public void loginFailed(IrcSession s, String reason){
+        fire(l -> l.loginFailed(s, reason));
+    }
+
+    public void lineReceived(IrcSession s, IrcMessage msg){
+        dispatcher.dispatch(s, msg);
+    }
+
+    /**
+     * raises the events for each line of the batch, between batchStarted
+     * and batchEnded
+     */
+    public void batchReceived(IrcSession s, IrcBatch b){
+        fire(l -> l.batchStarted(s, b));
+        s.replay(b, msg -> dispatcher.dispatch(s, msg));
+        fire(l -> l.batchEnded(s, b));
+    }
+
+    public void disconnected(IrcSession s, IOException cause){
+        fire(l -> l.disconnected(s, cause));
+    }
+
+    public void reconnecting(IrcSession s, IOException cause, long delayMillis){
+        fire(l -> l.reconnecting(s, cause, delayMillis));
+    }
+}
@@ -0,0 +1,464 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+
+/**
+ * One non-blocking connection to an IRC server, driven by an IrcEventLoop.
+ *
+ * Incoming bytes are read into a direct buffer and split on LF; each line is
+ * turned into chars (directly for plain ASCII, through a reused decoder
+ * otherwise) and parsed in place into a single IrcMessage that is handed to
+ * the ConnectionHandler. Outgoing lines are queued from any thread in an
+ * OutboundQueue, which paces them to stay under the server's flood limit;
+ * the loop thread writes each batch it releases with one gathering write.
+ *
+ * Given an SSLContext, the connection runs TLS through a TlsLayer: lines are
+ * held until the handshake is done, then read and written through it.
+ */
+public class IrcConnection {
+    private static final int READ_BUFFER = 16 * 1024; // room for a full IRCv3 line with tags
+    private static final int MAX_GATHER = 64;          // buffers per gathering write
+
+    private final InetSocketAddress address;
+    private final ConnectionHandler handler;
+    private final SSLContext tlsContext;   // null for plain text
+    private TlsLayer tls;                  // made on connecting (loop thread only)
+    private volatile IrcEventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+
+    private final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER);
+    private final char[] lineChars = new char[READ_BUFFER];
+    private final CharBuffer lineBuffer = CharBuffer.wrap(lineChars);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final IrcMessage msg = new IrcMessage();
+    private boolean discarding = false; // skipping the rest of an over-long line
+
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<ByteBuffer>(); // taken, not yet written (loop thread only)
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::scheduledFlush;
+    private boolean pacing = false; // a flush is waiting on the token bucket (loop thread only)
+    private volatile List<String> unsent = Collections.emptyList(); // lines lost when the link failed
+
+    /**
+     * Resolves the server address on the calling thread, so the event loop
+     * never blocks on DNS. Nothing is connected until the connection is
+     * registered with an IrcEventLoop.
+     */
+    public IrcConnection(String host, int port, ConnectionHandler handler){
+        this(host, port, handler, null);
+    }
+
+    /**
+     * a connection over TLS made with the given context (plain text if it
+     * is null)
+     */
+    public IrcConnection(String host, int port, ConnectionHandler handler, SSLContext tlsContext){
+        this.address = new InetSocketAddress(host, port);
+        this.handler = handler;
+        this.tlsContext = tlsContext;
+    }
+
+    public String host(){
+        return address.getHostString();
+    }
+
+    public int port(){
+        return address.getPort();
+    }
+
+    public boolean isSecure(){
+        return tlsContext != null;
+    }
+
+    /**
+     * the connection's TLS layer once connected, or null for plain text
+     */
+    public TlsLayer tls(){
+        return tls;
+    }
+
+    /**
+     * true once the TCP connection is established, until it is closed
+     */
+    public boolean isConnected(){
+        return connected && !closed;
+    }
+
+    /**
+     * true until the connection is closed (including while still connecting)
+     */
+    public boolean isOpen(){
+        return !closed;
+    }
+
+    /**
+     * the number of lines queued but not yet released for writing
+     */
+    public int queueDepth(){
+        return outbound.depth();
+    }
+
+    /**
+     * Queues a line for the server; the CR/LF is added here. May be called
+     * from any thread, and before the connection is established (the line is
+     * sent once it is, at the pace the OutboundQueue allows).
+     */
+    public void send(String line){
+        if(closed){return;}
+        outbound.add(line);
+        wake();
+    }
+
+    /**
+     * queues "command target :text[start, end)" without making a String of
+     * it (see OutboundQueue.add)
+     */
+    public void send(String command, String target, CharSequence text, int start, int end){
+        if(closed){return;}
+        outbound.add(command, target, text, start, end);
+        wake();
+    }
+
+    /**
+     * has the loop flush the queue, unless it is already going to
+     */
+    private void wake(){
+        if(loop != null && flushScheduled.compareAndSet(false, true)){
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * runs the task on this connection's event loop after the delay;
+     * false (and the task is dropped) if the connection was never
+     * registered
+     */
+    public boolean schedule(Runnable task, long delayMillis){
+        IrcEventLoop l = loop;
+        if(l == null){return false;}
+        l.schedule(task, delayMillis);
+        return true;
+    }
+
+    /**
+     * writes what is still queued, then closes the socket
+     */
+    public void close(){
+        if(loop == null){
+            closed = true;
+            return;
+        }
+        loop.execute(() -> shutdown(null, true));
+    }
+
+    /**
+     * closes the connection at once as having failed (e.g. the server
+     * stopped answering PINGs); queued lines are kept for unsent()
+     */
+    public void abort(IOException cause){
+        IrcEventLoop l = loop;
+        if(l == null){
+            closed = true;
+            return;
+        }
+        l.execute(() -> shutdown(cause, false));
+    }
+
+    /**
+     * the lines that were queued but not completely written when the
+     * connection failed, oldest first (without their CR/LF); empty unless
+     * it failed
+     */
+    public List<String> unsent(){
+        return unsent;
+    }
+
+    /**
+     * called on the loop thread by IrcEventLoop.register
+     */
+    void start(IrcEventLoop loop){
+        this.loop = loop;
+        if(closed){ // closed before it was registered: never connect, but say it's over
+            handler.disconnected(this, null);
+            return;
+        }
+        try{
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            if(channel.connect(address)){
+                finishConnect();
+            }
+        }catch(IOException e){
+            shutdown(e, false);
+        }catch(UnresolvedAddressException e){
+            shutdown(new UnknownHostException(host()), false);
+        }
+    }
+
+    /**
+     * called on the loop thread when the selector reports the key ready
+     */
+    void handle(SelectionKey k){
+        if(!k.isValid()){return;} // closed by a task earlier in this pass
+        try{
+            if(k.isConnectable() && channel.finishConnect()){
+                finishConnect();
+            }
+            if(tls != null && !tls.isReady()){
+                if(k.isValid() && (k.isReadable() || k.isWritable())){handshake();}
+                return;
+            }
+            if(k.isValid() && k.isReadable()){
+                read();
+            }
+            if(k.isValid() && k.isWritable()){
+                flush();
+            }
+        }catch(IOException e){
+            shutdown(e, false);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        connected = true;
+        key.interestOps(SelectionKey.OP_READ);
+        if(tlsContext != null){
+            tls = new TlsLayer(tlsContext, host(), port());
+            tls.begin();
+        }
+        handler.connected(this); // its lines wait in the queue until the handshake is done
+        if(tls != null){
+            handshake();
+        }else{
+            flush();
+        }
+    }
+
+    /**
+     * takes the TLS handshake a step further; once it is done, sends what
+     * has been queued and reads anything the server sent along with it
+     */
+    private void handshake() throws IOException {
+        if(!tls.handshake(channel)){
+            key.interestOps(tls.hasOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        flush();
+        if(!closed){read();}
+    }
+
+    /**
+     * reads what is available and hands every complete line to the handler
+     */
+    private void read() throws IOException {
+        do{
+            int n = tls == null ? channel.read(in) : tls.read(channel, in);
+            if(n < 0){
+                shutdown(new EOFException("Connection closed by server"), false);
+                return;
+            }
+            split();
+            if(closed){return;}
+        }while(tls != null && tls.hasInput()); // decrypted bytes that didn't fit in the buffer
+    }
+
+    /**
+     * hands every complete line in the buffer on, keeping a partial line
+     * for the next read. A handler that throws loses only its own line:
+     * the buffer is always compacted, so the rest of the stream stays in
+     * step.
+     */
+    private void split(){
+        in.flip();
+        int start = 0;
+        int limit = in.limit();
+        try{
+            for(int i = 0; i < limit; i++){
+                if(in.get(i) != '\n'){continue;}
+                if(discarding){
+                    discarding = false;
+                }else{
+                    try{
+                        deliver(start, i);
+                    }catch(RuntimeException e){
+                        System.out.println("Failed handling line " + e);
+                    }
+                    if(closed){return;} // the handler closed the connection
+                }
+                start = i + 1;
+            }
+        }finally{
+            in.limit(limit).position(start);
+            in.compact();
+        }
+        if(!in.hasRemaining()){ // no line end in a full buffer: drop the line
+            in.clear();
+            discarding = true;
+        }
+    }
+
+    /**
+     * decodes the bytes in[start, end) and passes them on as one message
+     */
+    private void deliver(int start, int end){
+        int len = 0;
+        boolean ascii = true;
+        for(int i = start; i < end; i++){
+            byte b = in.get(i);
+            if(b < 0){ascii = false; break;}
+            lineChars[len++] = (char)b;
+        }
+        if(!ascii){
+            int limit = in.limit();
+            in.limit(end).position(start);
+            lineBuffer.clear();
+            decoder.reset();
+            decoder.decode(in, lineBuffer, true);
+            decoder.flush(lineBuffer);
+            len = lineBuffer.position();
+            in.limit(limit);
+        }
+        long began = System.nanoTime();
+        boolean parsed = msg.parse(lineChars, 0, len);
+        ClientMetrics.METRICS.parseNanos.record(System.nanoTime() - began);
+        ClientMetrics.METRICS.linesIn.increment();
+        if(parsed){
+            handler.lineReceived(this, msg);
+        }
+    }
+
+    private void scheduledFlush(){
+        flushScheduled.set(false);
+        flushNow();
+    }
+
+    private void pacedFlush(){
+        pacing = false;
+        flushNow();
+    }
+
+    private void flushNow(){
+        try{
+            flush();
+        }catch(IOException e){
+            shutdown(e, false);
+        }
+    }
+
+    /**
+     * Writes the lines the queue releases with gathering writes until none
+     * are left or the socket buffer is full, in which case OP_WRITE finishes
+     * the job. Lines held back by pacing get a timer for when they are due.
+     */
+    private void flush() throws IOException {
+        if(!connected || closed || (tls != null && !tls.isReady())){return;}
+        if(tls != null && !tls.flush(channel)){ // the end of the last write is still waiting
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        while(true){
+            if(inFlight.isEmpty()){
+                long now = System.nanoTime();
+                if(outbound.take(inFlight, MAX_GATHER, now) == 0){
+                    key.interestOps(SelectionKey.OP_READ);
+                    if(!outbound.isEmpty() && !pacing){
+                        pacing = true;
+                        loop.schedule(this::pacedFlush, outbound.delay(now));
+                    }
+                    return;
+                }
+            }
+            if(!write()){
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * one gathering write of the lines in flight; false if the socket is full
+     */
+    private boolean write() throws IOException {
+        int n = 0;
+        for(ByteBuffer b : inFlight){
+            gather[n++] = b;
+            if(n == MAX_GATHER){break;}
+        }
+        boolean full;
+        if(tls == null){
+            channel.write(gather, 0, n);
+            full = gather[n - 1].hasRemaining();
+        }else{
+            full = !tls.write(channel, gather, 0, n);
+        }
+        Arrays.fill(gather, 0, n, null);
+        int written = 0;
+        while(!inFlight.isEmpty() && !inFlight.peek().hasRemaining()){
+            inFlight.poll();
+            written++;
+        }
+        ClientMetrics.METRICS.linesOut.add(written);
+        return !full;
+    }
+
+    /**
+     * the lines still in flight (even if partly written, as the server
+     * drops a line cut off by a failure) and queued, as strings
+     */
+    private List<String> drainUnsent(){
+        outbound.takeAll(inFlight);
+        List<String> lines = new ArrayList<String>(inFlight.size());
+        for(ByteBuffer b : inFlight){
+            String line = new String(b.array(), b.arrayOffset(), b.limit(), StandardCharsets.UTF_8);
+            lines.add(line.endsWith("\r\n") ? line.substring(0, line.length() - 2) : line);
+        }
+        return lines;
+    }
+
+    /**
+     * closes the socket (on the loop thread) and tells the handler once
+     */
+    private void shutdown(IOException cause, boolean flushFirst){
+        if(closed){return;}
+        if(flushFirst){ // a closing line such as QUIT must not wait for pacing
+            outbound.takeAll(inFlight);
+            try{
+                flush();
+            }catch(IOException e){
+                // closing anyway
+            }
+        }
+        closed = true;
+        connected = false;
+        if(tls != null){tls.close(channel);} // a close_notify, if there's room for it
+        if(key != null){key.cancel();}
+        try{
+            if(channel != null){channel.close();}
+        }catch(IOException e){
+            System.out.println("Failed disconnection " + e);
+        }
+        if(cause != null){
+            unsent = drainUnsent();
+        }
+        outbound.clear();
+        inFlight.clear();
+        handler.disconnected(this, cause);
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread running a Selector over any number of IrcConnections.
+ * All reads, line framing, parsing and writes for the connections happen on
+ * this thread, so one loop replaces the old thread-per-socket listener.
+ * Other threads hand work to the loop with execute(), which wakes the
+ * selector up, and work can be delayed with schedule().
+ */
+public class IrcEventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(); // only used on the loop thread
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public IrcEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * starts connecting c on this loop
+     */
+    public void register(IrcConnection c){
+        execute(() -> c.start(this));
+    }
+
+    /**
+     * runs the task on the loop thread; immediately if already on it
+     */
+    public void execute(Runnable task){
+        if(inEventLoop()){
+            task.run();
+        }else{
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * runs the task on the loop thread after (at least) the given delay
+     */
+    public void schedule(Runnable task, long delayMillis){
+        long at = System.nanoTime() + delayMillis * 1000000L;
+        execute(() -> timers.add(new Timer(at, task)));
+    }
+
+    public boolean inEventLoop(){
+        return Thread.currentThread() == thread;
+    }
+
+    Selector selector(){
+        return selector;
+    }
+
+    /**
+     * stops the loop and closes every connection still registered on it
+     */
+    public void shutdown(){
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run(){
+        while(running){
+            try{
+                long wait = nextTimer();
+                if(wait < 0){
+                    selector.select();
+                }else if(wait == 0){
+                    selector.selectNow();
+                }else{
+                    selector.select(wait);
+                }
+                runTasks();
+                runTimers();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ((IrcConnection)key.attachment()).handle(key);
+                }
+            }catch(IOException e){
+                System.out.println("Event loop failure " + e);
+            }catch(RuntimeException e){ // a bad handler must not kill every connection
+                System.out.println("Event loop failure " + e);
+            }
+        }
+        for(SelectionKey key : selector.keys()){
+            ((IrcConnection)key.attachment()).close();
+        }
+        try{
+            selector.close();
+        }catch(IOException e){
+            System.out.println("Failed closing selector " + e);
+        }
+    }
+
+    /**
+     * milliseconds until the next timer is due, or -1 if there are none
+     */
+    private long nextTimer(){
+        Timer t = timers.peek();
+        if(t == null){return -1;}
+        long nanos = t.at - System.nanoTime();
+        return nanos <= 0 ? 0 : Math.max(1, nanos / 1000000L);
+    }
+
+    private void runTimers(){
+        long now = System.nanoTime();
+        while(!timers.isEmpty() && timers.peek().at - now <= 0){
+            Runnable task = timers.poll().task;
+            try{
+                task.run();
+            }catch(RuntimeException e){
+                System.out.println("Event loop timer failed " + e);
+            }
+        }
+    }
+
+    private void runTasks(){
+        Runnable task;
+        while((task = tasks.poll()) != null){
+            try{
+                task.run();
+            }catch(RuntimeException e){
+                System.out.println("Event loop task failed " + e);
+            }
+        }
+    }
+
+    /**
+     * a task waiting for its time
+     */
+    private static class Timer implements Comparable<Timer> {
+        final long at;
+        final Runnable task;
+
+        Timer(long at, Runnable task){
+            this.at = at;
+            this.task = task;
+        }
+
+        public int compareTo(Timer other){
+            return Long.compare(at - other.at, 0);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+
+/**
+ * The events an IrcClient reports, already taken apart from the server's
+ * lines. Every method does nothing by default, so a subscriber (the Swing
+ * client, a logger, a bot) only overrides the events it cares about.
+ *
+ * Events arrive on the session's event loop thread, so they should be
+ * handled quickly; anything slow (like drawing) should be handed off.
+ */
+public interface IrcListener {
+    /** the server accepted the login */
+    default void loggedIn(IrcSession s){}
+
+    /** the server refused the login, e.g. because the nick is taken */
+    default void loginFailed(IrcSession s, String reason){}
+
+    /** the connection closed for good; cause is null if we closed it */
+    default void disconnected(IrcSession s, IOException cause){}
+
+    /** the connection failed and will be tried again in delayMillis; loggedIn follows once it is back */
+    default void reconnecting(IrcSession s, IOException cause, long delayMillis){}
+
+    /** a PRIVMSG to a channel or to us */
+    default void message(IrcSession s, String from, String target, String text){}
+
+    /** a NOTICE to a channel or to us (from is the server for server notices) */
+    default void notice(IrcSession s, String from, String target, String text){}
+
+    /** a PRIVMSG or NOTICE (already raised as such) matched a highlight rule */
+    default void highlighted(IrcSession s, String from, String target, String text){}
+
+    /** a PRIVMSG we sent */
+    default void sent(IrcSession s, String target, String text){}
+
+    /** a message could not be sent because the nick is not online */
+    default void noSuchNick(IrcSession s, String nick){}
+
+    default void joined(IrcSession s, String channel, String nick){}
+
+    default void parted(IrcSession s, String channel, String nick, String reason){}
+
+    default void kicked(IrcSession s, String channel, String nick, String by, String reason){}
+
+    default void quit(IrcSession s, String nick, String reason){}
+
+    default void nickChanged(IrcSession s, String from, String to){}
+
+    /** someone in our channels went away (reason is their message) or came back (reason is null) */
+    default void away(IrcSession s, String nick, String reason){}
+
+    /**
+     * the lines of an IRCv3 batch (e.g. a chathistory replay) follow as
+     * their usual events; the session's state already includes all of them
+     */
+    default void batchStarted(IrcSession s, IrcBatch b){}
+
+    /** the last event of the batch has been raised */
+    default void batchEnded(IrcSession s, IrcBatch b){}
+
+    /** the NAMES reply for a channel is complete (366) */
+    default void namesEnd(IrcSession s, String channel, int members){}
+
+    /** the server said what it supports (005); s.caseMapping() may have changed */
+    default void supports(IrcSession s){}
+
+    /** a numeric reply with no event of its own, e.g. the MOTD or HELP text */
+    default void numeric(IrcSession s, int code, IrcMessage msg){}
+
+    /** any other line the client has no event for */
+    default void other(IrcSession s, IrcMessage msg){}
+}
@@ -0,0 +1,323 @@
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A single IRC message (RFC 1459 with IRCv3 message tags), parsed in one pass.
+ *
+ * The message does not copy or split the line: parsing only records the start
+ * and end offsets of the tags, prefix, command and parameters inside the buffer
+ * it was given. One IrcMessage is meant to be reused for every line a
+ * connection receives, so parsing allocates nothing. Strings are only created
+ * when one of the accessors such as param(int) is called; the comparison
+ * methods (isCommand, paramEquals, ...) work straight on the buffer.
+ *
+ *   [@tags ][:prefix ]command[ param]*[ :trailing]
+ */
+public class IrcMessage {
+    public static final int MAX_PARAMS = 15;      // RFC 1459 limit on parameters
+
+    private char[] buf;                           // buffer the offsets point into
+    private char[] scratch = new char[512];       // copy of the line when parsing a String
+    private int lineStart, lineEnd;
+
+    private int tagsStart = -1, tagsEnd = -1;     // without the '@'
+    private int prefixStart = -1, prefixEnd = -1; // without the ':'
+    private int nickEnd = -1;                     // end of the nick part of the prefix
+    private int commandStart, commandEnd;
+    private int numeric = -1;                     // 0-999 for numeric replies, otherwise -1
+
+    private final int[] paramStart = new int[MAX_PARAMS];
+    private final int[] paramEnd = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean trailing;                     // last param was given with a ':'
+
+    /**
+     * parses a line held in a String (or other CharSequence). The characters
+     * are copied into a buffer owned by this message, which is only grown,
+     * never reallocated for each line.
+     */
+    public boolean parse(CharSequence line){
+        int len = line.length();
+        if(scratch.length < len){
+            scratch = new char[Math.max(len, scratch.length * 2)];
+        }
+        if(line instanceof String){
+            ((String)line).getChars(0, len, scratch, 0);
+        }else{
+            for(int i = 0; i < len; i++){scratch[i] = line.charAt(i);}
+        }
+        return parse(scratch, 0, len);
+    }
+
+    /**
+     * parses the line held in src[off, off+len) without copying it; the
+     * message refers to src until the next call to parse, so the caller
+     * must not overwrite that part of the buffer while still using it.
+     * Trailing CR/LF characters are ignored.
+     * Returns false if the line does not contain a command.
+     */
+    public boolean parse(char[] src, int off, int len){
+        int i = off;
+        int end = off + len;
+        while(end > i && (src[end - 1] == '\n' || src[end - 1] == '\r')){end--;}
+
+        buf = src;
+        lineStart = off;
+        lineEnd = end;
+        tagsStart = tagsEnd = prefixStart = prefixEnd = nickEnd = -1;
+        numeric = -1;
+        paramCount = 0;
+        trailing = false;
+
+        if(i < end && src[i] == '@'){ // IRCv3 message tags
+            tagsStart = ++i;
+            while(i < end && src[i] != ' '){i++;}
+            tagsEnd = i;
+            while(i < end && src[i] == ' '){i++;}
+        }
+        if(i < end && src[i] == ':'){ // source of the message
+            prefixStart = ++i;
+            while(i < end && src[i] != ' '){
+                if(nickEnd < 0 && (src[i] == '!' || src[i] == '@')){nickEnd = i;}
+                i++;
+            }
+            prefixEnd = i;
+            if(nickEnd < 0){nickEnd = i;}
+            while(i < end && src[i] == ' '){i++;}
+        }
+
+        commandStart = i;
+        int value = 0;
+        while(i < end && src[i] != ' '){
+            char c = src[i];
+            value = (c >= '0' && c <= '9' && value >= 0) ? value * 10 + (c - '0') : -1;
+            i++;
+        }
+        commandEnd = i;
+        if(commandEnd == commandStart){return false;}
+        if(commandEnd - commandStart == 3 && value >= 0){numeric = value;}
+
+        while(true){
+            while(i < end && src[i] == ' '){i++;}
+            if(i >= end){break;}
+            if(src[i] == ':' || paramCount == MAX_PARAMS - 1){ // the rest of the line is one param
+                trailing = src[i] == ':';
+                paramStart[paramCount] = trailing ? i + 1 : i;
+                paramEnd[paramCount] = end;
+                paramCount++;
+                break;
+            }
+            paramStart[paramCount] = i;
+            while(i < end && src[i] != ' '){i++;}
+            paramEnd[paramCount] = i;
+            paramCount++;
+        }
+        return true;
+    }
+
+    /**
+     * the command name, e.g. "PRIVMSG" or "353"
+     */
+    public String command(){
+        return new String(buf, commandStart, commandEnd - commandStart);
+    }
+
+    /**
+     * checks the command without creating a String
+     */
+    public boolean isCommand(String c){
+        return regionEquals(commandStart, commandEnd, c);
+    }
+
+    /**
+     * the numeric reply code, or -1 if the command is not a three digit numeric
+     */
+    public int numeric(){
+        return numeric;
+    }
+
+    public boolean hasPrefix(){
+        return prefixStart >= 0;
+    }
+
+    /**
+     * the full source (nick!user@host or server name), or null if there is none
+     */
+    public String prefix(){
+        return prefixStart < 0 ? null : new String(buf, prefixStart, prefixEnd - prefixStart);
+    }
+
+    /**
+     * the nick (or server name) part of the prefix, or null if there is none
+     */
+    public String nick(){
+        return prefixStart < 0 ? null : new String(buf, prefixStart, nickEnd - prefixStart);
+    }
+
+    /**
+     * true if the prefix is a user's nick!user@host, rather than a server
+     * name
+     */
+    public boolean isFromUser(){
+        return prefixStart >= 0 && nickEnd < prefixEnd && buf[nickEnd] == '!';
+    }
+
+    /**
+     * checks the nick part of the prefix without creating a String
+     */
+    public boolean nickEquals(String n){
+        return prefixStart >= 0 && regionEquals(prefixStart, nickEnd, n);
+    }
+
+    public int paramCount(){
+        return paramCount;
+    }
+
+    /**
+     * the i'th parameter, with the leading ':' of a trailing parameter removed.
+     * Colons inside the parameter are kept.
+     */
+    public String param(int i){
+        if(i < 0 || i >= paramCount){return null;}
+        return new String(buf, paramStart[i], paramEnd[i] - paramStart[i]);
+    }
+
+    /**
+     * checks the i'th parameter without creating a String
+     */
+    public boolean paramEquals(int i, String s){
+        return i >= 0 && i < paramCount && regionEquals(paramStart[i], paramEnd[i], s);
+    }
+
+    /**
+     * the last parameter (usually the human readable text), or "" if there are none
+     */
+    public String last(){
+        return paramCount == 0 ? "" : param(paramCount - 1);
+    }
+
+    /**
+     * true if the last parameter was written with a leading ':'
+     */
+    public boolean hasTrailing(){
+        return trailing;
+    }
+
+    public boolean hasTags(){
+        return tagsStart >= 0;
+    }
+
+    /**
+     * the unescaped value of a message tag, "" for a tag without a value,
+     * or null if the message does not carry the tag
+     */
+    public String tag(String key){
+        int i = tagsStart;
+        while(i >= 0 && i < tagsEnd){
+            int keyEnd = i;
+            while(keyEnd < tagsEnd && buf[keyEnd] != '=' && buf[keyEnd] != ';'){keyEnd++;}
+            int valueEnd = keyEnd;
+            while(valueEnd < tagsEnd && buf[valueEnd] != ';'){valueEnd++;}
+            if(regionEquals(i, keyEnd, key)){
+                return keyEnd == valueEnd ? "" : unescapeTag(keyEnd + 1, valueEnd);
+            }
+            i = valueEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * when the server says the message was sent (the IRCv3 server-time tag),
+     * in milliseconds since 1970, or now if it doesn't say
+     */
+    public long time(){
+        if(tagsStart >= 0){
+            String t = tag("time");
+            if(t != null){
+                try{
+                    return Instant.parse(t).toEpochMilli();
+                }catch(DateTimeParseException e){
+                    // use our own clock
+                }
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * gives zero-copy access to the underlying buffer, for use with the
+     * start and end offsets below
+     */
+    public char[] buffer(){
+        return buf;
+    }
+
+    public int paramStart(int i){
+        return paramStart[i];
+    }
+
+    public int paramEnd(int i){
+        return paramEnd[i];
+    }
+
+    public int prefixStart(){
+        return prefixStart;
+    }
+
+    public int nickEnd(){
+        return nickEnd;
+    }
+
+    public int commandStart(){
+        return commandStart;
+    }
+
+    public int commandEnd(){
+        return commandEnd;
+    }
+
+    public int tagsStart(){
+        return tagsStart;
+    }
+
+    public int tagsEnd(){
+        return tagsEnd;
+    }
+
+    /**
+     * the raw line, without the CR/LF
+     */
+    public String toString(){
+        return buf == null ? "" : new String(buf, lineStart, lineEnd - lineStart);
+    }
+
+    private boolean regionEquals(int start, int end, String s){
+        int len = s.length();
+        if(end - start != len){return false;}
+        for(int i = 0; i < len; i++){
+            if(buf[start + i] != s.charAt(i)){return false;}
+        }
+        return true;
+    }
+
+    /**
+     * undoes the IRCv3 tag value escaping (\: \s \\ \r \n)
+     */
+    private String unescapeTag(int start, int end){
+        StringBuilder sb = new StringBuilder(end - start);
+        for(int i = start; i < end; i++){
+            char c = buf[i];
+            if(c == '\\' && i + 1 < end){
+                char e = buf[++i];
+                if(e == ':'){sb.append(';');}
+                else if(e == 's'){sb.append(' ');}
+                else if(e == 'r'){sb.append('\r');}
+                else if(e == 'n'){sb.append('\n');}
+                else{sb.append(e);}
+            }else if(c != '\\'){
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,821 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+
+/**
+ * The state of one server connection: its nick, the channels it has joined,
+ * who is in them (a ChannelMembership), which nicks are online (a
+ * PresenceCache), the server's channel list (a ChannelDirectory), and the
+ * IrcConnection (with its own parser and outbound queue) that
+ * carries it. The session logs itself in and keeps its own state up to date
+ * from the server's messages, then passes every message on to its
+ * SessionListener.
+ *
+ * Once logged in, the session PINGs the server regularly and treats a
+ * server that has sent nothing for PING_MILLIS + PING_TIMEOUT as gone. When
+ * the connection fails, the SessionManager reconnects it after a backoff;
+ * the session then logs in again with the same details, rejoins its
+ * channels (several per JOIN) and sends the lines that had not gone out,
+ * along with any sent while it was reconnecting.
+ *
+ * Logging in starts with IRCv3 capability negotiation (CAP LS 302, REQ,
+ * END), asking for batch, server-time, message-tags, multi-prefix and
+ * away-notify where the server has them; servers without CAP just ignore
+ * it. The lines of a batch are held until the batch ends and then passed
+ * on together as an IrcBatch (see SessionListener.batchReceived).
+ *
+ * A session may run over TLS (given an SSLContext) and may authenticate
+ * with SASL during the negotiation, if the server offers the mechanism: the
+ * CAP END waits for the server's 903, and a 904 fails the login.
+ *
+ * Sessions are made and scheduled by a SessionManager.
+ */
+public class IrcSession implements ConnectionHandler {
+    public static final long PING_MILLIS = 60 * 1000;    // how often we PING the server once logged in
+    public static final long PING_TIMEOUT = 30 * 1000;   // how late the server's answer may be
+    public static final String QUIT_MESSAGE = "Leaving";
+    private static final long CHECK_MILLIS = 15 * 1000;  // how often the link is checked
+    private static final int MAX_JOIN = 400;             // characters of channel names per JOIN
+    private static final int MAX_BACKLOG = 1000;         // lines kept while reconnecting
+    private static final int MAX_BATCH_LINES = 5000;     // a longer batch is passed on in parts
+    private static final int MAX_LINE = 512;             // bytes in a line, with the CR/LF (tags aside)
+    private static final int MIN_TEXT = 32;              // bytes of text a line always carries
+    private static final String[] WANTED_CAPS = {"batch", "server-time", "message-tags", "multi-prefix", "away-notify"};
+
+    private final int id;
+    private final String host;
+    private final int port;
+    private final String realname;
+    private final SessionListener listener;
+    private final Map<String, String> channels = new ConcurrentHashMap<String, String>(); // names by folded name
+    private volatile String nick;
+    private volatile String mask;                // our nick!user@host as others see it (null until known)
+    private volatile int userLen = 10;           // the longest user and host names, until 005 says
+    private volatile int hostLen = 63;
+    private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+    private volatile IrcConnection connection;
+    private volatile boolean loggedIn = false;
+    private final PresenceCache presence = new PresenceCache(this);
+    private final ChannelMembership members = new ChannelMembership();
+    private final ChannelDirectory directory = new ChannelDirectory(this);
+
+    private final SessionManager manager;   // reconnects the session; null if it shouldn't be
+    private final SSLContext tls;           // null for plain text
+    private final Sasl sasl;                // null to not authenticate
+    private boolean authenticating = false;
+    private volatile boolean closing = false;
+    private volatile boolean reconnecting = false;
+    private final AtomicBoolean ended = new AtomicBoolean(); // the listener has heard disconnected (only once)
+    private boolean wasLoggedIn = false;
+    private int attempts = 0;               // reconnects since the last login
+    private final Set<String> rejoin = new LinkedHashSet<String>();
+    private final Queue<String> backlog = new ConcurrentLinkedQueue<String>(); // to send once logged in again
+    private volatile long lastHeard;          // System.nanoTime() of the last line from the server
+    private long lastPing;
+
+    // IRCv3 state, reset for each connection (loop thread only, apart from caps)
+    private final Set<String> caps = ConcurrentHashMap.newKeySet();      // capabilities in use
+    private final Map<String, String> offered = new HashMap<String, String>(); // the server's, with their values
+    private int capRequests = 0;                                         // REQs not yet ACKed or NAKed
+    private final Map<String, IrcBatch> batches = new HashMap<String, IrcBatch>(); // open batches by ref (inner refs map to the outer batch)
+    private final IrcMessage batchLine = new IrcMessage();
+    private IrcMessage current;                                          // the message being handled
+
+    IrcSession(int id, String host, int port, String nick, String realname, SessionListener listener){
+        this(id, host, port, nick, realname, listener, null, null, null);
+    }
+
+    IrcSession(int id, String host, int port, String nick, String realname, SessionListener listener,
+               SessionManager manager, SSLContext tls, Sasl sasl){
+        this.manager = manager;
+        this.tls = tls;
+        this.sasl = sasl;
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.nick = nick;
+        this.realname = realname;
+        this.listener = listener;
+    }
+
+    public int id(){
+        return id;
+    }
+
+    public String host(){
+        return host;
+    }
+
+    public int port(){
+        return port;
+    }
+
+    /**
+     * the context to make TLS connections with, or null for plain text
+     */
+    SSLContext tlsContext(){
+        return tls;
+    }
+
+    /**
+     * true if the session runs over TLS
+     */
+    public boolean isSecure(){
+        return tls != null;
+    }
+
+    /**
+     * true if the connection picked up an earlier TLS session with the
+     * server (see TlsLayer) rather than making a new one
+     */
+    public boolean isResumed(){
+        IrcConnection c = connection;
+        TlsLayer t = c == null ? null : c.tls();
+        return t != null && t.isReady() && t.isResumed();
+    }
+
+    /**
+     * the nick the server currently knows us by
+     */
+    public String nick(){
+        return nick;
+    }
+
+    /**
+     * how the server compares nicks and channel names (from its 005 reply)
+     */
+    public CaseMapping caseMapping(){
+        return caseMapping;
+    }
+
+    /**
+     * the channels this session is in, as they were named when joined (a
+     * read only view, safe from any thread)
+     */
+    public Collection<String> channels(){
+        return Collections.unmodifiableCollection(channels.values());
+    }
+
+    /**
+     * whether the session is in the channel, matched by the server's case
+     * mapping (from any thread)
+     */
+    public boolean isOn(String channel){
+        return channel != null && channels.containsKey(caseMapping.fold(channel));
+    }
+
+    /**
+     * which nicks are online, kept up to date from the session's traffic
+     */
+    public PresenceCache presence(){
+        return presence;
+    }
+
+    /**
+     * who is in each of the session's channels, kept up to date from the
+     * session's traffic
+     */
+    public ChannelMembership members(){
+        return members;
+    }
+
+    /**
+     * the server's channel list, collected from LIST replies
+     */
+    public ChannelDirectory directory(){
+        return directory;
+    }
+
+    public boolean isLoggedIn(){
+        return loggedIn;
+    }
+
+    /**
+     * true if the IRCv3 capability (e.g. "server-time") is in use
+     */
+    public boolean hasCap(String cap){
+        return caps.contains(cap);
+    }
+
+    /**
+     * the IRCv3 capabilities in use on this connection (read only)
+     */
+    public Set<String> caps(){
+        return Collections.unmodifiableSet(caps);
+    }
+
+    /**
+     * When the message being handled was sent, from its server-time tag if
+     * it has one, otherwise now. Only meaningful on the event loop thread,
+     * while a listener is handling a line.
+     */
+    public long time(){
+        IrcMessage m = current;
+        return m == null ? System.currentTimeMillis() : m.time();
+    }
+
+    /**
+     * Passes each line of the batch to the action, in order; time() gives
+     * each line's own time while it runs. For listeners, from batchReceived.
+     */
+    public void replay(IrcBatch b, Consumer<IrcMessage> action){
+        IrcMessage outer = current;
+        b.forEach(batchLine, m -> {
+            current = m;
+            action.accept(m);
+        });
+        current = outer;
+    }
+
+    /**
+     * true while the connection is being made or is up, or is being
+     * reconnected
+     */
+    public boolean isOpen(){
+        IrcConnection c = connection;
+        return reconnecting || (c != null && c.isOpen());
+    }
+
+    /**
+     * true while waiting to reconnect, or logging in again
+     */
+    public boolean isReconnecting(){
+        return reconnecting;
+    }
+
+    boolean isClosing(){
+        return closing;
+    }
+
+    /**
+     * the lines queued on the connection but not yet sent
+     */
+    public int queueDepth(){
+        IrcConnection c = connection;
+        return c == null ? 0 : c.queueDepth();
+    }
+
+    /**
+     * queues a line for the server (without the CR/LF); while reconnecting
+     * it is kept until the session has logged in again
+     */
+    public void send(String line){
+        if(reconnecting){
+            if(backlog.size() < MAX_BACKLOG){backlog.add(line);}
+            return;
+        }
+        IrcConnection c = connection;
+        if(c != null){
+            c.send(line);
+        }
+    }
+
+    /**
+     * Sends text to a channel or nick as command lines (PRIVMSG or NOTICE),
+     * cut so each fits in a line as the server passes it on, with our
+     * nick!user@host in front. Each line of a multi-line text goes
+     * separately; all of them wait their turn in the connection's queue.
+     */
+    public void sendText(String command, String target, CharSequence text){
+        int room = textRoom(command, target);
+        int len = text.length();
+        int end;
+        for(int i = MessageSplitter.start(text, 0); i < len; i = MessageSplitter.next(text, end)){
+            end = MessageSplitter.end(text, i, room);
+            if(reconnecting){
+                if(backlog.size() < MAX_BACKLOG){backlog.add(command + " " + target + " :" + text.subSequence(i, end));}
+                continue;
+            }
+            IrcConnection c = connection;
+            if(c != null){
+                c.send(command, target, text, i, end);
+            }
+        }
+    }
+
+    /**
+     * The bytes of text that fit in one "command target :text" line once
+     * the server has put ":nick!user@host " in front of it. Until our own
+     * JOIN shows our mask, the longest user and host the server allows are
+     * assumed.
+     */
+    int textRoom(String command, String target){
+        String m = mask;
+        int prefix = m != null ? MessageSplitter.utf8Length(m, 0, m.length())
+                               : MessageSplitter.utf8Length(nick, 0, nick.length()) + 1 + userLen + 1 + hostLen;
+        int room = MAX_LINE - 2 - (1 + prefix + 1) - (command.length() + 1 + MessageSplitter.utf8Length(target, 0, target.length()) + 2);
+        return Math.max(room, MIN_TEXT);
+    }
+
+    /**
+     * joins the channels, several to a JOIN line
+     */
+    public void join(Collection<String> names){
+        joinLines(names, this::send);
+    }
+
+    /**
+     * runs the task on the session's event loop after the delay; false
+     * (and the task is dropped) if there is no connection to run it on
+     */
+    public boolean schedule(Runnable task, long delayMillis){
+        IrcConnection c = connection;
+        return c != null && c.schedule(task, delayMillis);
+    }
+
+    /**
+     * sends the quit message and closes the connection once it is written;
+     * the session is not reconnected after this
+     */
+    public void close(){
+        closing = true;
+        IrcConnection c = connection;
+        if(c != null && c.isOpen()){
+            c.send("QUIT :" + QUIT_MESSAGE);
+            c.close();
+        }else{ // nothing open to close (still resolving, or waiting to reconnect): just stop trying
+            reconnecting = false;
+            backlog.clear();
+            end(null);
+        }
+    }
+
+    /**
+     * called by the SessionManager once the connection is made
+     */
+    void attach(IrcConnection c){
+        connection = c;
+    }
+
+    public void connected(IrcConnection c){
+        ClientMetrics.METRICS.connects.increment();
+        lastHeard = System.nanoTime();
+        caps.clear();
+        offered.clear();
+        batches.clear();
+        capRequests = 0;
+        authenticating = false;
+        mask = null;
+        c.send("CAP LS 302");
+        c.send("NICK " + nick);
+        c.send("USER " + nick + " 0 unused :" + realname);
+    }
+
+    public void lineReceived(IrcConnection c, IrcMessage msg){
+        lastHeard = System.nanoTime();
+        if(msg.isCommand("CAP")){
+            cap(c, msg);
+            return;
+        }
+        if(!loggedIn){
+            checkLogin(c, msg);
+            return;
+        }
+        if(inBatch(msg)){return;}
+        current = msg;
+        track(msg);
+        listener.lineReceived(this, msg);
+        current = null;
+    }
+
+    /**
+     * keeps the session's own state up to date from a line
+     */
+    private void track(IrcMessage msg){
+        if(msg.isCommand("JOIN") && msg.paramCount() > 0 && msg.nickEquals(nick)){
+            channels.put(caseMapping.fold(msg.param(0)), msg.param(0));
+            if(msg.prefix().indexOf('!') > 0){mask = msg.prefix();}
+        }
+        else if(msg.isCommand("PART") && msg.paramCount() > 0 && msg.nickEquals(nick)){
+            channels.remove(caseMapping.fold(msg.param(0)));
+        }
+        else if(msg.isCommand("KICK") && msg.paramEquals(1, nick)){
+            channels.remove(caseMapping.fold(msg.param(0)));
+        }
+        else if(msg.isCommand("NICK") && msg.nickEquals(nick)){
+            nick = msg.last();
+            String m = mask;
+            if(m != null){mask = nick + m.substring(m.indexOf('!'));}
+        }
+        else if(msg.numeric() == 5){
+            for(int i = 1; i < msg.paramCount() - 1; i++){
+                String token = msg.param(i);
+                if(token.startsWith("CASEMAPPING=")){
+                    caseMapping = CaseMapping.forName(token.substring("CASEMAPPING=".length()));
+                    presence.setCaseMapping(caseMapping);
+                    members.setCaseMapping(caseMapping);
+                    Map<String, String> joined = new HashMap<String, String>(channels);
+                    channels.clear(); // refolded the new way
+                    for(String name : joined.values()){channels.put(caseMapping.fold(name), name);}
+                }else if(token.startsWith("USERLEN=")){
+                    userLen = length(token, userLen);
+                }else if(token.startsWith("HOSTLEN=")){
+                    hostLen = length(token, hostLen);
+                }else{
+                    members.supports(token);
+                    directory.supports(token);
+                }
+            }
+        }
+        switch(msg.numeric()){
+            case 321: directory.listStart(); break;
+            case 322: directory.listed(msg); break;
+            case 323: directory.listEnd(); break;
+            case 263: // try again later
+            case 481: // not allowed
+                directory.listFailed();
+                break;
+            default:
+                if(msg.numeric() >= 400 && msg.numeric() < 600 && msg.paramEquals(1, "LIST")){
+                    directory.listFailed(); // e.g. 416 too many matches, 421 unknown command
+                }
+                break;
+        }
+        if(msg.isCommand("PONG")){
+            pong(msg);
+        }
+        trackMembers(msg);
+        trackPresence(msg);
+    }
+
+    /**
+     * Handles the CAP replies. While logging in: LS lists what the server
+     * offers (over several lines with 302), we REQ the ones we want and
+     * send END once every REQ is ACKed or NAKed. Afterwards NEW and DEL
+     * (cap-notify, implied by 302) change what is offered.
+     */
+    private void cap(IrcConnection c, IrcMessage msg){
+        if(msg.paramCount() < 3){return;}
+        String sub = msg.param(1);
+        String[] list = msg.last().trim().split(" +");
+        if(sub.equals("LS") || sub.equals("NEW")){
+            for(String cap : list){
+                if(cap.isEmpty()){continue;}
+                int eq = cap.indexOf('=');
+                offered.put(eq < 0 ? cap : cap.substring(0, eq), eq < 0 ? "" : cap.substring(eq + 1));
+            }
+            if(sub.equals("LS") && msg.paramCount() > 3 && msg.paramEquals(2, "*")){return;} // more to come
+            requestCaps(c);
+        }else if(sub.equals("ACK")){
+            for(String cap : list){
+                if(cap.startsWith("-")){caps.remove(cap.substring(1));}
+                else if(!cap.isEmpty()){caps.add(cap);}
+            }
+            capReplied(c);
+        }else if(sub.equals("NAK")){
+            capReplied(c);
+        }else if(sub.equals("DEL")){
+            for(String cap : list){
+                offered.remove(cap);
+                caps.remove(cap);
+            }
+        }
+    }
+
+    /**
+     * asks for the capabilities we want that the server offers, or ends
+     * the negotiation if there are none
+     */
+    private void requestCaps(IrcConnection c){
+        StringBuilder req = new StringBuilder();
+        for(String cap : WANTED_CAPS){
+            if(offered.containsKey(cap) && !caps.contains(cap)){
+                if(req.length() > 0){req.append(' ');}
+                req.append(cap);
+            }
+        }
+        if(!loggedIn && sasl != null && offered.containsKey("sasl") && sasl.offeredIn(offered.get("sasl")) && !caps.contains("sasl")){
+            if(req.length() > 0){req.append(' ');}
+            req.append("sasl");
+        }
+        if(req.length() > 0){
+            capRequests++;
+            c.send("CAP REQ :" + req);
+        }else if(!loggedIn && capRequests == 0){
+            c.send("CAP END");
+        }
+    }
+
+    private void capReplied(IrcConnection c){
+        if(capRequests > 0){capRequests--;}
+        if(loggedIn || capRequests > 0 || authenticating){return;}
+        if(sasl != null && caps.contains("sasl")){
+            authenticating = true;
+            c.send("AUTHENTICATE " + sasl.mechanism());
+        }else{
+            c.send("CAP END");
+        }
+    }
+
+    /**
+     * SASL during login: answers the server's "AUTHENTICATE +", and ends
+     * the negotiation once it has worked (903). If it fails (904, 905) the
+     * login fails; if it was already done or aborted (906, 907) the login
+     * goes on without it.
+     */
+    private void authenticate(IrcConnection c, IrcMessage msg){
+        if(msg.isCommand("AUTHENTICATE")){
+            if(authenticating && msg.paramEquals(0, "+")){
+                for(String line : sasl.response()){c.send(line);}
+            }
+            return;
+        }
+        switch(msg.numeric()){
+            case 903: case 906: case 907:
+                authenticating = false;
+                c.send("CAP END");
+                break;
+            case 904: case 905:
+                authenticating = false;
+                listener.loginFailed(this, "SASL " + sasl + " failed: " + msg.last());
+                c.close();
+                break;
+            default: break;
+        }
+    }
+
+    /**
+     * Collects lines that belong to a batch, and passes the batch on when
+     * the server ends it. Returns true if the line was taken.
+     */
+    private boolean inBatch(IrcMessage msg){
+        if(msg.isCommand("BATCH") && msg.paramCount() > 0){
+            String ref = msg.param(0);
+            if(ref.length() < 2){return false;}
+            String key = ref.substring(1);
+            if(ref.charAt(0) == '+'){
+                IrcBatch outer = msg.hasTags() ? openBatch(msg.tag("batch")) : null;
+                if(outer != null){
+                    outer.add(msg.toString());
+                    batches.put(key, outer);
+                }else{
+                    batches.put(key, IrcBatch.start(msg));
+                }
+                return true;
+            }
+            if(ref.charAt(0) == '-'){
+                IrcBatch b = batches.remove(key);
+                if(b == null){return false;}
+                if(b.ref().equals(key)){
+                    batches.values().removeIf(open -> open == b); // any inner batch left open
+                    deliver(b);
+                }else{
+                    b.add(msg.toString());
+                }
+                return true;
+            }
+            return false;
+        }
+        if(batches.isEmpty() || !msg.hasTags()){return false;}
+        IrcBatch b = openBatch(msg.tag("batch"));
+        if(b == null){return false;}
+        b.add(msg.toString());
+        if(b.size() >= MAX_BATCH_LINES){
+            deliver(b);
+            b.clear();
+        }
+        return true;
+    }
+
+    private IrcBatch openBatch(String ref){
+        return ref == null ? null : batches.get(ref);
+    }
+
+    /**
+     * applies a batch's lines to the session's state, then hands the whole
+     * batch to the listener. The member lists take a NAMES batch's replies
+     * in one call.
+     */
+    private void deliver(IrcBatch b){
+        if(b.type().equals(IrcBatch.NAMES)){
+            members.names(b, batchLine);
+            replay(b, m -> {
+                if(m.numeric() == 353){presence.names(m);} // the members already have it
+                else{track(m);}
+            });
+        }else{
+            replay(b, this::track);
+        }
+        listener.batchReceived(this, b);
+    }
+
+    /**
+     * Called when the connection closes. If it failed after we had logged
+     * in, and we weren't closing it, the session remembers its channels and
+     * unsent lines and asks the SessionManager to reconnect it.
+     */
+    public void disconnected(IrcConnection c, IOException cause){
+        if(c != connection){return;} // an old connection
+        loggedIn = false;
+        boolean retry = cause != null && !closing && manager != null && wasLoggedIn;
+        if(retry){
+            if(!reconnecting){ // the first failure: remember what to restore
+                rejoin.addAll(channels.values());
+                List<String> lines = new ArrayList<String>();
+                for(String line : c.unsent()){
+                    if(!line.startsWith("PING") && !line.startsWith("PONG") && !line.startsWith("ISON")){ // the presence cache asks again
+                        lines.add(line);
+                    }
+                }
+                lines.addAll(backlog);
+                backlog.clear();
+                backlog.addAll(lines);
+            }
+            reconnecting = true;
+        }
+        channels.clear();
+        batches.clear();
+        members.clear();
+        presence.clear();
+        directory.clear();
+        if(cause != null){ClientMetrics.METRICS.disconnects.increment();}
+        if(retry){
+            long delay = manager.reconnect(this, attempts++);
+            listener.reconnecting(this, cause, delay);
+        }else{
+            reconnecting = false;
+            backlog.clear();
+            end(cause);
+        }
+    }
+
+    /**
+     * tells the listener the session is over, once: a close that lands
+     * while a reconnect is being resolved can otherwise be reported both
+     * here and by the connection it cancels
+     */
+    private void end(IOException cause){
+        if(ended.compareAndSet(false, true)){
+            presence.ended();
+            listener.disconnected(this, cause);
+        }
+    }
+
+    /**
+     * Runs every CHECK_MILLIS while logged in on the connection: PINGs the
+     * server every PING_MILLIS (the PING carries the time it was sent, so
+     * its PONG gives the round trip time), and drops the connection if the
+     * server has sent nothing for PING_MILLIS + PING_TIMEOUT.
+     */
+    private void keepAlive(IrcConnection c){
+        if(c != connection || !c.isOpen() || !loggedIn){return;}
+        long now = System.nanoTime();
+        if(now - lastHeard > (PING_MILLIS + PING_TIMEOUT) * 1000000L){
+            c.abort(new IOException("Ping timeout: no reply from " + host));
+            return;
+        }
+        if(now - lastPing >= PING_MILLIS * 1000000L){
+            lastPing = now;
+            c.send("PING :" + now);
+        }
+        c.schedule(() -> keepAlive(c), CHECK_MILLIS);
+    }
+
+    /**
+     * After logging in again: rejoins the channels, several to a JOIN, then
+     * sends the lines that were waiting.
+     */
+    private void restore(IrcConnection c){
+        joinLines(rejoin, c::send);
+        rejoin.clear();
+        reconnecting = false;
+        String line;
+        while((line = backlog.poll()) != null){
+            c.send(line);
+        }
+    }
+
+    /**
+     * the JOIN lines for the channels, several to a line (up to MAX_JOIN
+     * characters of names), so joining many channels takes few lines of
+     * the paced queue
+     */
+    private static void joinLines(Collection<String> names, Consumer<String> out){
+        StringBuilder join = new StringBuilder();
+        for(String channel : names){
+            if(join.length() > 0 && join.length() + channel.length() >= MAX_JOIN){
+                out.accept("JOIN " + join);
+                join.setLength(0);
+            }
+            if(join.length() > 0){join.append(',');}
+            join.append(channel);
+        }
+        if(join.length() > 0){out.accept("JOIN " + join);}
+    }
+
+    /**
+     * records the round trip time of one of our keepalive PINGs
+     */
+    private void pong(IrcMessage msg){
+        try{
+            long sent = Long.parseLong(msg.last());
+            ClientMetrics.METRICS.pingNanos.record(System.nanoTime() - sent);
+        }catch(NumberFormatException e){
+            // not one of ours
+        }
+    }
+
+    /**
+     * the number in a 005 token such as "HOSTLEN=64", or dflt if it has none
+     */
+    private static int length(String token, int dflt){
+        try{
+            return Integer.parseInt(token.substring(token.indexOf('=') + 1));
+        }catch(NumberFormatException e){
+            return dflt;
+        }
+    }
+
+    /**
+     * keeps the member lists of our channels up to date (our own JOIN,
+     * PART and KICK have already updated the channel set)
+     */
+    private void trackMembers(IrcMessage msg){
+        if(msg.numeric() == 353){
+            members.names(msg);
+            return;
+        }
+        if(!msg.hasPrefix()){return;}
+        if((msg.isCommand("JOIN") || msg.isCommand("PART")) && msg.paramCount() == 0){return;} // malformed: no channel
+        if(msg.isCommand("JOIN")){
+            if(msg.nickEquals(nick)){members.joined(msg.param(0));}
+            members.join(msg.param(0), msg.nick());
+        }else if(msg.isCommand("PART")){
+            if(msg.nickEquals(nick)){members.left(msg.param(0));}
+            else{members.part(msg.param(0), msg.nick());}
+        }else if(msg.isCommand("KICK") && msg.paramCount() > 1){
+            if(msg.paramEquals(1, nick)){members.left(msg.param(0));}
+            else{members.part(msg.param(0), msg.param(1));}
+        }else if(msg.isCommand("QUIT")){
+            members.quit(msg.nick());
+        }else if(msg.isCommand("NICK")){
+            members.rename(msg.nick(), msg.last());
+        }else if(msg.isCommand("MODE")){
+            members.mode(msg);
+        }else if(msg.isCommand("AWAY")){ // away-notify
+            members.away(msg.nick(), msg.paramCount() > 0 && !msg.last().isEmpty());
+        }
+    }
+
+    /**
+     * tells the presence cache who is on the server, from the lines that
+     * show it
+     */
+    private void trackPresence(IrcMessage msg){
+        switch(msg.numeric()){
+            case 303: presence.replied(msg); return;         // ISON reply
+            case 353: presence.names(msg); return;           // NAMES reply
+            case 401:                                        // no such nick
+                if(msg.paramCount() > 1){presence.gone(msg.param(1));}
+                return;
+            default: break;
+        }
+        if(!msg.hasPrefix()){return;}
+        if(msg.isCommand("QUIT")){
+            presence.gone(msg.nick());
+        }else if(msg.isCommand("NICK")){
+            presence.gone(msg.nick());
+            presence.seen(msg.last());
+        }else if(msg.isFromUser() && (msg.isCommand("JOIN") || msg.isCommand("PART") || msg.isCommand("PRIVMSG") || msg.isCommand("NOTICE"))){
+            presence.seen(msg.nick()); // not a server's own NOTICE: its name isn't a nick
+        }
+    }
+
+    /**
+     * Checks lines from the server until a 004 (success) or a 433 (failure -
+     * nickname in use). The 001 welcome tells us the nick the server gave us.
+     */
+    private void checkLogin(IrcConnection c, IrcMessage msg){
+        if(authenticating){
+            authenticate(c, msg);
+        }
+        if(msg.numeric() == 1){
+            nick = msg.param(0);
+        }
+        else if(msg.numeric() == 4){
+            loggedIn = true;
+            wasLoggedIn = true;
+            attempts = 0;
+            lastPing = System.nanoTime();
+            c.schedule(() -> keepAlive(c), CHECK_MILLIS);
+            if(reconnecting){restore(c);}
+            presence.loggedIn();
+            listener.loggedIn(this);
+        }
+        else if(msg.numeric() == 433 && reconnecting){ // probably our old connection, not yet timed out
+            nick = nick + "_";
+            c.send("NICK " + nick);
+        }
+        else if(msg.numeric() == 433){
+            listener.loginFailed(this, msg.last());
+            c.close();
+        }
+        else if(msg.isCommand("PING")){ // some servers PING before the login is accepted
+            c.send("PONG :" + msg.last());
+        }
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * Handles one kind of server message; registered with a CommandDispatcher.
+ */
+public interface MessageHandler {
+    /**
+     * called on the session's event loop; msg is only valid during the call
+     */
+    void handle(IrcSession s, IrcMessage msg);
+}
@@ -0,0 +1,488 @@
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The user's rules for incoming messages: ignore masks (nick!user@host with
+ * * and ?) that drop everything from whoever matches, keywords that
+ * highlight or drop a message containing them as a word, and regular
+ * expressions that do the same.
+ *
+ * The rules are compiled together so each message is checked in one pass
+ * over each part, however many rules there are: the masks into one trie
+ * (masks sharing a start share nodes), the keywords into an Aho-Corasick
+ * automaton, and the expressions behind a second automaton of the literal
+ * text they start with, so only the few that could match are run. The
+ * compiled rules are immutable and swapped in whole when a rule changes,
+ * so every event loop can check messages at once without locking.
+ */
+public class MessageRules {
+    public static final int PASS = 0, HIGHLIGHT = 1, DROP = 2; // the verdicts, in order of precedence
+
+    private final Set<String> masks = new LinkedHashSet<String>();
+    private final Map<String, Integer> keywords = new LinkedHashMap<String, Integer>();
+    private final Map<String, Integer> patterns = new LinkedHashMap<String, Integer>();
+    private volatile Compiled compiled = new Compiled(masks, keywords, patterns);
+
+    /**
+     * Ignores everything from sources matching the mask. "nick" is taken as
+     * "nick!*@*", and "user@host" as "*!user@host".
+     */
+    public synchronized void ignore(String mask){
+        if(masks.add(normalise(mask))){recompile();}
+    }
+
+    public synchronized void unignore(String mask){
+        if(masks.remove(normalise(mask))){recompile();}
+    }
+
+    /**
+     * highlights (HIGHLIGHT) or drops (DROP) messages with the word or
+     * phrase in them, in any case
+     */
+    public synchronized void keyword(String word, int action){
+        if(word.isEmpty()){return;}
+        keywords.put(word.toLowerCase(Locale.ROOT), action);
+        recompile();
+    }
+
+    /**
+     * Highlights or drops messages the regular expression finds a match
+     * in. Throws a PatternSyntaxException if it is not a valid expression,
+     * leaving the rules as they were.
+     */
+    public synchronized void pattern(String regex, int action){
+        Pattern.compile(regex);
+        Integer old = patterns.put(regex, action);
+        try{
+            recompile();
+        }catch(RuntimeException e){ // the rules it was compiled with must not be lost
+            if(old == null){patterns.remove(regex);}
+            else{patterns.put(regex, old);}
+            throw e;
+        }
+    }
+
+    /**
+     * takes away the keyword or pattern
+     */
+    public synchronized void remove(String rule){
+        boolean changed = keywords.remove(rule.toLowerCase(Locale.ROOT)) != null;
+        changed |= patterns.remove(rule) != null;
+        if(changed){recompile();}
+    }
+
+    public synchronized List<String> masks(){
+        return new ArrayList<String>(masks);
+    }
+
+    private void recompile(){
+        compiled = new Compiled(masks, keywords, patterns);
+    }
+
+    private static String normalise(String mask){
+        mask = CaseMapping.RFC1459.fold(mask.trim());
+        if(mask.indexOf('!') < 0 && mask.indexOf('@') < 0){return mask + "!*@*";}
+        if(mask.indexOf('!') < 0){return "*!" + mask;}
+        if(mask.indexOf('@') < 0){return mask + "@*";}
+        return mask;
+    }
+
+    /**
+     * The verdict on a message: DROP if its source (nick!user@host, or
+     * null for the server) is ignored or a rule drops it, HIGHLIGHT if a
+     * rule highlights it, otherwise PASS.
+     */
+    public int check(String source, CharSequence text){
+        return compiled.check(source, text);
+    }
+
+    /**
+     * One set of rules, compiled. Running dozens of expressions over every
+     * message would cost far more than the rest put together, so each
+     * expression that must contain some literal text (its anchor, e.g.
+     * "buy" in "buy\\s+now") is only tried on messages the anchor
+     * automaton finds it in; the rest are joined into one alternation per
+     * action and tried on every message. Only expressions without groups
+     * or back references are joined (joining would renumber their groups,
+     * and a named group may only appear once); the others are tried one
+     * at a time.
+     */
+    private static class Compiled {
+        private static final int MIN_ANCHOR = 3;
+        private final MaskTrie masks = new MaskTrie();
+        private final Keywords keywords;
+        private final int[] keywordActions;
+        private final Keywords anchors;          // null if no expression has one
+        private final int[][] anchored;          // the expressions with each anchor
+        private final Pattern[] patterns;
+        private final int[] patternActions;
+        private final Pattern drop, highlight;   // the joinable expressions without anchors; null if none
+        private final int[] alone;               // the expressions without anchors that can't be joined
+
+        Compiled(Set<String> masks, Map<String, Integer> keywords, Map<String, Integer> patterns){
+            for(String m : masks){this.masks.add(m);}
+            this.keywords = new Keywords(new ArrayList<String>(keywords.keySet()));
+            keywordActions = new int[keywords.size()];
+            int i = 0;
+            for(int action : keywords.values()){keywordActions[i++] = action;}
+
+            this.patterns = new Pattern[patterns.size()];
+            patternActions = new int[patterns.size()];
+            Map<String, List<Integer>> byAnchor = new LinkedHashMap<String, List<Integer>>();
+            Map<String, Integer> unanchored = new LinkedHashMap<String, Integer>();
+            List<Integer> single = new ArrayList<Integer>();
+            i = 0;
+            for(Map.Entry<String, Integer> e : patterns.entrySet()){
+                this.patterns[i] = Pattern.compile(e.getKey());
+                patternActions[i] = e.getValue();
+                String anchor = anchor(e.getKey());
+                if(anchor.length() >= MIN_ANCHOR){
+                    byAnchor.computeIfAbsent(anchor, k -> new ArrayList<Integer>()).add(i);
+                }else if(joinable(e.getKey())){
+                    unanchored.put(e.getKey(), e.getValue());
+                }else{
+                    single.add(i);
+                }
+                i++;
+            }
+            anchors = byAnchor.isEmpty() ? null : new Keywords(new ArrayList<String>(byAnchor.keySet()));
+            anchored = new int[byAnchor.size()][];
+            i = 0;
+            for(List<Integer> list : byAnchor.values()){
+                anchored[i] = new int[list.size()];
+                for(int j = 0; j < list.size(); j++){anchored[i][j] = list.get(j);}
+                i++;
+            }
+            alone = new int[single.size()];
+            for(i = 0; i < alone.length; i++){alone[i] = single.get(i);}
+            drop = alternation(unanchored, DROP);
+            highlight = alternation(unanchored, HIGHLIGHT);
+        }
+
+        /**
+         * true if the expression means the same inside an alternation: no
+         * group but (?:...), so no numbered or named groups and no inline
+         * flags that could reach past it, and no back references
+         */
+        static boolean joinable(String regex){
+            for(int i = 0; i < regex.length(); i++){
+                char c = regex.charAt(i);
+                if(c == '\\' && i + 1 < regex.length()){
+                    char e = regex.charAt(++i);
+                    if(Character.isDigit(e) || e == 'k'){return false;}
+                    if(e == 'Q'){ // quoted up to \E
+                        int end = regex.indexOf("\\E", i);
+                        if(end < 0){return true;}
+                        i = end + 1;
+                    }
+                }else if(c == '(' && !regex.startsWith("(?:", i) && !isFlags(regex, i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * true if regex has inline flags at i, e.g. (?i) or (?i:...), that
+         * keep to the group they are in once joined; (?x) and (?d) do not
+         * (a comment or a changed line end could swallow the join)
+         */
+        private static boolean isFlags(String regex, int i){
+            if(!regex.startsWith("(?", i)){return false;}
+            int j = i + 2;
+            while(j < regex.length() && "imsuU-".indexOf(regex.charAt(j)) >= 0){j++;}
+            return j > i + 2 && j < regex.length() && (regex.charAt(j) == ')' || regex.charAt(j) == ':');
+        }
+
+        /**
+         * The literal text every match of the expression starts with, in
+         * lower case ("" if there is none to be sure of). Stops at the
+         * first special character; an expression with | anywhere has none.
+         */
+        static String anchor(String regex){
+            if(regex.indexOf('|') >= 0){return "";}
+            int i = 0;
+            if(regex.startsWith("(?i)")){i = 4;}
+            StringBuilder sb = new StringBuilder();
+            for(; i < regex.length(); i++){
+                char c = regex.charAt(i);
+                if(c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))){
+                    c = regex.charAt(++i); // an escaped special character stands for itself
+                }else if("\\^$.|?*+()[]{}".indexOf(c) >= 0){
+                    if((c == '?' || c == '*' || c == '{') && sb.length() > 0){
+                        sb.setLength(sb.length() - 1); // the char before may not be there
+                    }
+                    break;
+                }
+                sb.append(Character.toLowerCase(c));
+            }
+            return sb.toString();
+        }
+
+        private static Pattern alternation(Map<String, Integer> patterns, int action){
+            StringBuilder sb = new StringBuilder();
+            for(Map.Entry<String, Integer> e : patterns.entrySet()){
+                if(e.getValue() != action){continue;}
+                if(sb.length() > 0){sb.append('|');}
+                sb.append("(?:").append(e.getKey()).append(')');
+            }
+            return sb.length() == 0 ? null : Pattern.compile(sb.toString());
+        }
+
+        int check(String source, CharSequence text){
+            if(source != null && masks.matches(source)){return DROP;}
+            int verdict = keywords.best(text, keywordActions);
+            if(verdict == DROP){return DROP;}
+            long[] found = anchors == null ? null : anchors.present(text);
+            if(found != null){
+                for(int a = 0; a < anchored.length; a++){
+                    if((found[a >> 6] & (1L << a)) == 0){continue;}
+                    for(int p : anchored[a]){
+                        if(patternActions[p] > verdict && patterns[p].matcher(text).find()){
+                            verdict = patternActions[p];
+                            if(verdict == DROP){return DROP;}
+                        }
+                    }
+                }
+            }
+            for(int p : alone){
+                if(patternActions[p] > verdict && patterns[p].matcher(text).find()){
+                    verdict = patternActions[p];
+                    if(verdict == DROP){return DROP;}
+                }
+            }
+            if(drop != null && drop.matcher(text).find()){return DROP;}
+            if(verdict == PASS && highlight != null && highlight.matcher(text).find()){return HIGHLIGHT;}
+            return verdict;
+        }
+    }
+
+    /**
+     * Ignore masks in a trie of their (folded) characters, where * and ?
+     * are edges of their own. Matching walks the literal edge for each
+     * char of the source, and tries the wildcard edges alongside, so masks
+     * with a common start are checked together.
+     */
+    private static class MaskTrie {
+        private final Node root = new Node();
+
+        private static class Node {
+            char[] keys = new char[0];
+            Node[] kids = new Node[0];
+            Node any;      // ?
+            Node star;     // *
+            boolean end;   // a mask ends here
+
+            Node child(char c){
+                int i = Arrays.binarySearch(keys, c);
+                return i >= 0 ? kids[i] : null;
+            }
+
+            Node add(char c){
+                int i = Arrays.binarySearch(keys, c);
+                if(i >= 0){return kids[i];}
+                i = -i - 1;
+                char[] k = new char[keys.length + 1];
+                Node[] n = new Node[kids.length + 1];
+                System.arraycopy(keys, 0, k, 0, i);
+                System.arraycopy(kids, 0, n, 0, i);
+                System.arraycopy(keys, i, k, i + 1, keys.length - i);
+                System.arraycopy(kids, i, n, i + 1, kids.length - i);
+                k[i] = c;
+                n[i] = new Node();
+                keys = k;
+                kids = n;
+                return n[i];
+            }
+        }
+
+        void add(String mask){
+            Node n = root;
+            for(int i = 0; i < mask.length(); i++){
+                char c = mask.charAt(i);
+                if(c == '*'){
+                    if(i > 0 && mask.charAt(i - 1) == '*'){continue;} // ** is *
+                    if(n.star == null){n.star = new Node();}
+                    n = n.star;
+                }else if(c == '?'){
+                    if(n.any == null){n.any = new Node();}
+                    n = n.any;
+                }else{
+                    n = n.add(c);
+                }
+            }
+            n.end = true;
+        }
+
+        boolean matches(String source){
+            return match(root, source, 0);
+        }
+
+        private static boolean match(Node n, String s, int i){
+            while(true){
+                Node star = n.star;
+                if(star != null){
+                    if(star.end){return true;} // a trailing * takes the rest
+                    boolean wild = star.any != null || star.star != null;
+                    for(int j = i; j < s.length(); j++){ // only where the next part can start
+                        if((wild || star.child(CaseMapping.RFC1459.fold(s.charAt(j))) != null) && match(star, s, j)){return true;}
+                    }
+                }
+                if(i == s.length()){return n.end;}
+                if(n.any != null && match(n.any, s, i + 1)){return true;}
+                n = n.child(CaseMapping.RFC1459.fold(s.charAt(i)));
+                if(n == null){return false;}
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Words as an Aho-Corasick automaton over lower case chars: one pass
+     * over the text finds every word in it, however many there are. Each
+     * word's id is its place in the list given.
+     */
+    private static class Keywords {
+        private final int[] depth;    // the length of the text each state has matched
+        private final int[] word;     // the id of the word ending at each state, or -1
+        private final int[] fail;     // the longest proper suffix that is also a state
+        private final int[] dict;     // the next state down the fail links with a word, or -1
+        private final char[][] keys;  // each state's edges, sorted
+        private final int[][] next;
+        private final int words;
+
+        Keywords(List<String> list){
+            words = list.size();
+            List<char[]> k = new ArrayList<char[]>();
+            List<int[]> n = new ArrayList<int[]>();
+            List<Integer> d = new ArrayList<Integer>();
+            List<Integer> w = new ArrayList<Integer>();
+            k.add(new char[0]); n.add(new int[0]); d.add(0); w.add(-1);
+            for(int id = 0; id < list.size(); id++){ // the trie
+                int s = 0;
+                for(char c : list.get(id).toCharArray()){
+                    char[] ks = k.get(s);
+                    int i = Arrays.binarySearch(ks, c);
+                    if(i >= 0){
+                        s = n.get(s)[i];
+                        continue;
+                    }
+                    i = -i - 1;
+                    int t = k.size();
+                    k.add(new char[0]); n.add(new int[0]); d.add(d.get(s) + 1); w.add(-1);
+                    k.set(s, insert(ks, i, c));
+                    n.set(s, insert(n.get(s), i, t));
+                    s = t;
+                }
+                w.set(s, id);
+            }
+            int size = k.size();
+            keys = k.toArray(new char[size][]);
+            next = n.toArray(new int[size][]);
+            depth = new int[size];
+            word = new int[size];
+            for(int i = 0; i < size; i++){
+                depth[i] = d.get(i);
+                word[i] = w.get(i);
+            }
+            fail = new int[size];
+            dict = new int[size];
+            dict[0] = -1;
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>(); // the fail links, breadth first
+            for(int t : next[0]){
+                dict[t] = -1;
+                queue.add(t);
+            }
+            while(!queue.isEmpty()){
+                int s = queue.poll();
+                for(int i = 0; i < keys[s].length; i++){
+                    int t = next[s][i];
+                    int f = fail[s];
+                    int g;
+                    while((g = step(f, keys[s][i])) < 0 && f != 0){f = fail[f];}
+                    fail[t] = g < 0 ? 0 : g;
+                    dict[t] = word[fail[t]] >= 0 ? fail[t] : dict[fail[t]];
+                    queue.add(t);
+                }
+            }
+        }
+
+        private static char[] insert(char[] a, int i, char c){
+            char[] b = new char[a.length + 1];
+            System.arraycopy(a, 0, b, 0, i);
+            b[i] = c;
+            System.arraycopy(a, i, b, i + 1, a.length - i);
+            return b;
+        }
+
+        private static int[] insert(int[] a, int i, int v){
+            int[] b = new int[a.length + 1];
+            System.arraycopy(a, 0, b, 0, i);
+            b[i] = v;
+            System.arraycopy(a, i, b, i + 1, a.length - i);
+            return b;
+        }
+
+        /**
+         * the state after c from s, or -1 if s has no edge for it
+         */
+        private int step(int s, char c){
+            int i = Arrays.binarySearch(keys[s], c);
+            return i >= 0 ? next[s][i] : -1;
+        }
+
+        /**
+         * the state after c from s, following fail links as needed
+         */
+        private int advance(int s, char c){
+            int t;
+            while((t = step(s, c)) < 0 && s != 0){s = fail[s];}
+            return t < 0 ? 0 : t;
+        }
+
+        /**
+         * The highest action (from actions, by word id) of the words in the
+         * text as whole words (not inside a longer one); PASS if none.
+         */
+        int best(CharSequence text, int[] actions){
+            if(words == 0){return PASS;}
+            int verdict = PASS;
+            int s = 0;
+            int len = text.length();
+            for(int i = 0; i < len; i++){
+                s = advance(s, Character.toLowerCase(text.charAt(i)));
+                for(int m = word[s] >= 0 ? s : dict[s]; m >= 0; m = dict[m]){
+                    int action = actions[word[m]];
+                    if(action > verdict && isWord(text, i - depth[m] + 1, i + 1)){
+                        verdict = action;
+                        if(verdict == DROP){return DROP;}
+                    }
+                }
+            }
+            return verdict;
+        }
+
+        /**
+         * the ids of the words found anywhere in the text, as a bit set, or
+         * null if there are none
+         */
+        long[] present(CharSequence text){
+            long[] found = null;
+            int s = 0;
+            int len = text.length();
+            for(int i = 0; i < len; i++){
+                s = advance(s, Character.toLowerCase(text.charAt(i)));
+                for(int m = word[s] >= 0 ? s : dict[s]; m >= 0; m = dict[m]){
+                    if(found == null){found = new long[(words + 63) >> 6];}
+                    found[word[m] >> 6] |= 1L << word[m];
+                }
+            }
+            return found;
+        }
+
+        private static boolean isWord(CharSequence text, int start, int end){
+            return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+        }
+    }
+}
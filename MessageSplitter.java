@@ -0,0 +1,160 @@
+/**
+ * Cuts outgoing text into pieces that each fit in one IRC line, measured
+ * in UTF-8 bytes as the server will count them. Each line of a multi-line
+ * paste is a piece of its own; a line too long for the space is cut at
+ * the last space that fits, or if there is none at the last character
+ * boundary (never inside a surrogate pair, before a combining mark, or
+ * inside an emoji sequence).
+ *
+ * Everything works on index ranges of the original text and allocates
+ * nothing, so a long paste is cut up without making a String per piece
+ * (OutboundQueue encodes each range straight into its line's bytes):
+ *
+ *   for(int i = MessageSplitter.start(text, 0); i < text.length(); i = MessageSplitter.next(text, end)){
+ *       end = MessageSplitter.end(text, i, maxBytes);
+ *       ... send text[i, end)
+ *   }
+ */
+public final class MessageSplitter {
+    private MessageSplitter(){}
+
+    /**
+     * where the first piece from i starts: i, after any line breaks (an
+     * empty line can't be sent)
+     */
+    public static int start(CharSequence text, int i){
+        int len = text.length();
+        while(i < len && (text.charAt(i) == '\n' || text.charAt(i) == '\r')){i++;}
+        return i;
+    }
+
+    /**
+     * The end (exclusive) of the piece starting at start: the end of its
+     * line if that fits in maxBytes, otherwise the best place to cut it.
+     * Always at least one character past start, so a caller always gets
+     * somewhere.
+     */
+    public static int end(CharSequence text, int start, int maxBytes){
+        int len = text.length();
+        int bytes = 0;
+        int lastSpace = -1; // the last space that fits (cut before it)
+        int i = start;
+        while(i < len){
+            char c = text.charAt(i);
+            if(c == '\n' || c == '\r'){return i;}
+            int n = Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1)) ? 2 : 1;
+            bytes += n == 2 ? 4 : utf8Length(c);
+            if(bytes > maxBytes){
+                if(lastSpace > start){return lastSpace;}
+                for(int j = i; j > start; j--){ // the last place a cut leaves whole characters
+                    if(isBoundary(text, j)){return j;}
+                }
+                return i > start ? i : i + n; // one character bigger than the space
+            }
+            if(c == ' '){lastSpace = i;}
+            i += n;
+        }
+        return len;
+    }
+
+    /**
+     * where the piece after one ending at end starts: past the line break
+     * or space it was cut at, and any empty lines after that
+     */
+    public static int next(CharSequence text, int end){
+        if(end < text.length() && text.charAt(end) == ' '){end++;}
+        return start(text, end);
+    }
+
+    /**
+     * the number of bytes of one char in UTF-8 (a lone surrogate is sent
+     * as '?')
+     */
+    public static int utf8Length(char c){
+        if(c < 0x80){return 1;}
+        if(c < 0x800){return 2;}
+        if(Character.isSurrogate(c)){return 1;}
+        return 3;
+    }
+
+    /**
+     * the number of bytes of text[start, end) in UTF-8
+     */
+    public static int utf8Length(CharSequence text, int start, int end){
+        int bytes = 0;
+        for(int i = start; i < end; i++){
+            char c = text.charAt(i);
+            if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))){
+                bytes += 4;
+                i++;
+            }else{
+                bytes += utf8Length(c);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * writes text[start, end) into out at pos as UTF-8, returning the
+     * position after it
+     */
+    public static int encode(CharSequence text, int start, int end, byte[] out, int pos){
+        for(int i = start; i < end; i++){
+            char c = text.charAt(i);
+            if(c < 0x80){
+                out[pos++] = (byte)c;
+            }else if(c < 0x800){
+                out[pos++] = (byte)(0xC0 | (c >> 6));
+                out[pos++] = (byte)(0x80 | (c & 0x3F));
+            }else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))){
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out[pos++] = (byte)(0xF0 | (cp >> 18));
+                out[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                out[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                out[pos++] = (byte)(0x80 | (cp & 0x3F));
+            }else if(Character.isSurrogate(c)){
+                out[pos++] = '?';
+            }else{
+                out[pos++] = (byte)(0xE0 | (c >> 12));
+                out[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Whether text can be cut before index i without breaking up what
+     * shows as one character: not inside a surrogate pair, not before a
+     * combining mark, variation selector, emoji modifier or tag, not
+     * either side of a zero width joiner, and not inside a pair of
+     * regional indicators (a flag).
+     */
+    static boolean isBoundary(CharSequence text, int i){
+        char c = text.charAt(i);
+        if(Character.isLowSurrogate(c) && Character.isHighSurrogate(text.charAt(i - 1))){return false;}
+        int cp = Character.codePointAt(text, i);
+        int before = Character.codePointBefore(text, i);
+        if(before == 0x200D || cp == 0x200D){return false;} // zero width joiner
+        if(isExtend(cp)){return false;}
+        if(isRegionalIndicator(cp) && isRegionalIndicator(before)){
+            int count = 0; // how many indicators run up to i: a cut may only fall between pairs
+            for(int j = i; j > 0 && isRegionalIndicator(Character.codePointBefore(text, j)); j -= 2){count++;}
+            return count % 2 == 0;
+        }
+        return true;
+    }
+
+    private static boolean isExtend(int cp){
+        if(cp >= 0xFE00 && cp <= 0xFE0F){return true;}   // variation selectors
+        if(cp >= 0x1F3FB && cp <= 0x1F3FF){return true;} // emoji skin tones
+        if(cp >= 0xE0020 && cp <= 0xE007F){return true;} // tags (subdivision flags)
+        int type = Character.getType(cp);
+        return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+            || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isRegionalIndicator(int cp){
+        return cp >= 0x1F1E6 && cp <= 0x1F1FF;
+    }
+}
@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lines waiting to be sent on one connection. Any thread may add lines;
+ * only the connection's event loop takes them (many producers, one
+ * consumer, over lock-free queues).
+ *
+ * Normal lines are paced by a token bucket so the server does not kick us
+ * for flooding: up to BURST lines go out at once, then one more every
+ * REFILL_MILLIS. PING and PONG go in a priority lane that is always taken
+ * first and never waits, so keepalives are not stuck behind a large paste;
+ * so does CAP, so capability negotiation doesn't use up the burst before
+ * the first JOIN.
+ */
+public class OutboundQueue {
+    public static final int BURST = 5;               // lines that may be sent back to back
+    public static final long REFILL_MILLIS = 2000;   // time to earn one more line
+
+    private final Queue<ByteBuffer> priority = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final Queue<ByteBuffer> normal = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final long refillNanos;
+    private final long burstNanos;
+    private long clock;     // the bucket, as a time: full when clock <= now (loop thread only)
+    private boolean started = false; // clock has been set: nanoTime has no fixed origin, so 0 means nothing
+
+    public OutboundQueue(){
+        this(BURST, REFILL_MILLIS);
+    }
+
+    public OutboundQueue(int burst, long refillMillis){
+        this.refillNanos = refillMillis * 1000000L;
+        this.burstNanos = burst * refillNanos;
+    }
+
+    /**
+     * queues a line (the CR/LF is added here)
+     */
+    public void add(String line){
+        ByteBuffer b = ByteBuffer.wrap((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        if(line.startsWith("PONG") || line.startsWith("PING") || line.startsWith("CAP ")){
+            priority.add(b);
+        }else{
+            normal.add(b);
+        }
+        depth.incrementAndGet();
+    }
+
+    /**
+     * Queues "command target :text[start, end)", encoding it straight into
+     * the line's bytes (no String of the line is made). Always a normal
+     * line, so a long paste cut into many of these is paced.
+     */
+    public void add(String command, String target, CharSequence text, int start, int end){
+        int targetBytes = MessageSplitter.utf8Length(target, 0, target.length());
+        byte[] line = new byte[command.length() + 1 + targetBytes + 2
+                               + MessageSplitter.utf8Length(text, start, end) + 2];
+        int p = MessageSplitter.encode(command, 0, command.length(), line, 0);
+        line[p++] = ' ';
+        p = MessageSplitter.encode(target, 0, target.length(), line, p);
+        line[p++] = ' ';
+        line[p++] = ':';
+        p = MessageSplitter.encode(text, start, end, line, p);
+        line[p++] = '\r';
+        line[p] = '\n';
+        normal.add(ByteBuffer.wrap(line));
+        depth.incrementAndGet();
+    }
+
+    /**
+     * the number of lines waiting to be taken
+     */
+    public int depth(){
+        return depth.get();
+    }
+
+    public boolean isEmpty(){
+        return priority.isEmpty() && normal.isEmpty();
+    }
+
+    /**
+     * Moves the lines that may be sent now into out: every priority line,
+     * then as many normal lines as the bucket allows, up to max in all.
+     * Returns the number moved.
+     */
+    public int take(Collection<ByteBuffer> out, int max, long now){
+        int n = 0;
+        ByteBuffer b;
+        while(n < max && (b = priority.poll()) != null){
+            out.add(b);
+            n++;
+        }
+        if(!started || clock - now < 0){ // a full bucket
+            clock = now;
+            started = true;
+        }
+        while(n < max && clock + refillNanos - now <= burstNanos && (b = normal.poll()) != null){
+            out.add(b);
+            clock += refillNanos;
+            n++;
+        }
+        depth.addAndGet(-n);
+        return n;
+    }
+
+    /**
+     * moves every waiting line into out regardless of pacing (used when
+     * closing, so the last lines such as QUIT are not lost)
+     */
+    public int takeAll(Collection<ByteBuffer> out){
+        int n = 0;
+        ByteBuffer b;
+        while((b = priority.poll()) != null){out.add(b); n++;}
+        while((b = normal.poll()) != null){out.add(b); n++;}
+        depth.addAndGet(-n);
+        return n;
+    }
+
+    /**
+     * milliseconds until the next normal line may be sent (0 if now)
+     */
+    public long delay(long now){
+        if(!started){return 0;}
+        long wait = clock + refillNanos - burstNanos - now;
+        return wait <= 0 ? 0 : (wait + 999999) / 1000000L;
+    }
+
+    public void clear(){
+        priority.clear();
+        normal.clear();
+        depth.set(0);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Micro benchmark comparing the old split based parseMessage with IrcMessage.
+ * The project has no build to run JMH from, so this follows the same shape by
+ * hand: warmup rounds, then measured rounds reporting ns per line, with the
+ * results consumed so the JIT can't drop the work.
+ *
+ * Run with: java ParserBenchmark [rounds]
+ */
+public class ParserBenchmark {
+    private static final int LINES_PER_ROUND = 1_000_000;
+
+    /** a mix of lines as seen on a busy channel */
+    static final String[] SAMPLE = {
+        ":nick!user@host.example.com PRIVMSG #channel :hello there, see https://example.com:8080/x at 12:30",
+        ":irc.example.com 353 me = #channel :@op +voice alice bob carol dave erin frank",
+        "PING :irc.example.com",
+        ":alice!a@host JOIN #channel",
+        ":bob!b@host PART #channel :bye",
+        ":irc.example.com 322 me #channel 42 :a topic: with colons",
+        "@time=2015-05-01T12:00:00.000Z;msgid=abc :carol!c@host PRIVMSG #channel :tagged message",
+        ":dave!d@host QUIT :Quit: leaving",
+    };
+
+    static long sink;
+
+    public static void main(String[] args){
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        for(int i = 0; i < 3; i++){ // warmup
+            legacy();
+            inPlace();
+        }
+        for(int i = 0; i < rounds; i++){
+            long t0 = System.nanoTime();
+            legacy();
+            long t1 = System.nanoTime();
+            inPlace();
+            long t2 = System.nanoTime();
+            System.out.printf("round %d: split %.1f ns/line, IrcMessage %.1f ns/line%n",
+                i, (t1 - t0) / (double)LINES_PER_ROUND, (t2 - t1) / (double)LINES_PER_ROUND);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void legacy(){
+        long h = 0;
+        for(int i = 0; i < LINES_PER_ROUND; i++){
+            String[] parsed = legacyParse(SAMPLE[i % SAMPLE.length]);
+            h += parsed.length + parsed[parsed.length - 1].length();
+        }
+        sink += h;
+    }
+
+    private static void inPlace(){
+        IrcMessage msg = new IrcMessage();
+        char[][] lines = new char[SAMPLE.length][];
+        for(int i = 0; i < SAMPLE.length; i++){lines[i] = SAMPLE[i].toCharArray();}
+        long h = 0;
+        for(int i = 0; i < LINES_PER_ROUND; i++){
+            char[] line = lines[i % lines.length];
+            msg.parse(line, 0, line.length);
+            int last = msg.paramCount() - 1;
+            h += msg.paramCount() + msg.paramEnd(last) - msg.paramStart(last);
+        }
+        sink += h;
+    }
+
+    /**
+     * the original ChatClient.parseMessage, kept as the baseline
+     */
+    static String[] legacyParse(String s){
+        int spaceCount = 0;
+        int colonCount = 0;
+        for(int i = 0; i < s.length(); i++){
+            if (s.charAt(i) == ' '){spaceCount ++;}
+            if (s.charAt(i) == ':'){colonCount ++;}
+            if (colonCount >= 2){ break;}
+        }
+        String[] newString = s.split(" ", spaceCount + 1);
+        newString[newString.length - 1] = newString[newString.length - 1].replace(":", "");
+        return newString;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Correctness checks for IrcMessage, the parser ParserBenchmark measures.
+ * The project has no build to run a test framework from, so this is a
+ * plain main(): each check prints what failed, and the exit status is the
+ * number of failures (0 when everything passes).
+ *
+ * Run with: java ParserTest
+ */
+public class ParserTest {
+    private static int failures = 0;
+
+    public static void main(String[] args){
+        tags();
+        prefix();
+        paramLimit();
+        trailing();
+        lineEnds();
+        System.out.println(failures == 0 ? "ParserTest: all passed" : "ParserTest: " + failures + " failed");
+        System.exit(failures);
+    }
+
+    private static void tags(){
+        IrcMessage m = parse("@time=2015-05-01T12:00:00.000Z;msgid=abc;flag;+draft/x=y :nick!u@h PRIVMSG #c :hi");
+        check(m.hasTags(), "tags seen");
+        check("2015-05-01T12:00:00.000Z".equals(m.tag("time")), "time tag: " + m.tag("time"));
+        check("abc".equals(m.tag("msgid")), "msgid tag: " + m.tag("msgid"));
+        check("".equals(m.tag("flag")), "tag without a value is empty: " + m.tag("flag"));
+        check("y".equals(m.tag("+draft/x")), "client tag: " + m.tag("+draft/x"));
+        check(m.tag("missing") == null, "missing tag is null");
+        check(m.time() == 1430481600000L, "server-time: " + m.time());
+        check(m.isCommand("PRIVMSG") && "nick".equals(m.nick()), "tags don't disturb the rest");
+
+        m = parse("@k=a\\:b\\sc\\\\d\\re\\nf;j=end\\ :s PRIVMSG #c :x");
+        check("a;b c\\d\re\nf".equals(m.tag("k")), "tag escapes: " + m.tag("k"));
+        check("end".equals(m.tag("j")), "trailing backslash dropped: " + m.tag("j"));
+
+        m = parse(":nick!u@h PRIVMSG #c :no tags");
+        check(!m.hasTags() && m.tag("time") == null, "no tags");
+    }
+
+    private static void prefix(){
+        IrcMessage m = parse(":irc.example.com 001 me :Welcome");
+        check("irc.example.com".equals(m.prefix()), "server prefix: " + m.prefix());
+        check("irc.example.com".equals(m.nick()), "server prefix as nick: " + m.nick());
+        check(m.numeric() == 1, "numeric: " + m.numeric());
+
+        m = parse(":justnick QUIT :gone");
+        check("justnick".equals(m.nick()) && "justnick".equals(m.prefix()), "prefix without user@host: " + m.prefix());
+        check(m.nickEquals("justnick"), "nickEquals without user@host");
+
+        m = parse(":nick@host JOIN #c");
+        check("nick".equals(m.nick()) && "nick@host".equals(m.prefix()), "prefix with only @host: " + m.nick());
+
+        m = parse(":nick!user@host JOIN #c");
+        check("nick".equals(m.nick()) && "nick!user@host".equals(m.prefix()), "full prefix: " + m.prefix());
+
+        m = parse("PING :server");
+        check(!m.hasPrefix() && m.prefix() == null && m.nick() == null, "no prefix");
+    }
+
+    private static void paramLimit(){
+        StringBuilder line = new StringBuilder("CMD");
+        for(int i = 1; i <= 17; i++){line.append(" p").append(i);}
+        IrcMessage m = parse(line.toString());
+        check(m.paramCount() == IrcMessage.MAX_PARAMS, "params capped at 15: " + m.paramCount());
+        check("p14".equals(m.param(13)), "14th param: " + m.param(13));
+        check("p15 p16 p17".equals(m.param(14)), "15th param takes the rest: " + m.param(14));
+        check(!m.hasTrailing(), "rest of line is not a ':' trailing");
+        check(m.param(15) == null && m.param(-1) == null, "out of range params are null");
+
+        line = new StringBuilder("CMD");
+        for(int i = 1; i <= 14; i++){line.append(" p").append(i);}
+        m = parse(line + " :last one");
+        check(m.paramCount() == 15 && "last one".equals(m.last()) && m.hasTrailing(), "14 params and a trailing: " + m.last());
+    }
+
+    private static void trailing(){
+        IrcMessage m = parse(":n!u@h PRIVMSG #c :see https://example.com:8080/x at 12:30 :)");
+        check(m.paramCount() == 2, "two params: " + m.paramCount());
+        check("see https://example.com:8080/x at 12:30 :)".equals(m.last()), "colons kept in trailing: " + m.last());
+        check(m.paramEquals(0, "#c"), "target");
+
+        m = parse(":n!u@h PRIVMSG #c :");
+        check(m.paramCount() == 2 && "".equals(m.last()) && m.hasTrailing(), "empty trailing: " + m.paramCount());
+
+        m = parse(":n!u@h PRIVMSG #c ::starts with colon");
+        check(":starts with colon".equals(m.last()), "only the first ':' is removed: " + m.last());
+
+        m = parse(":n!u@h   MODE   #c   +o   bob  ");
+        check(m.isCommand("MODE") && m.paramCount() == 3 && "bob".equals(m.last()), "extra spaces: " + m.paramCount());
+
+        m = parse("QUIT");
+        check(m.paramCount() == 0 && "".equals(m.last()), "no params");
+
+        check(!new IrcMessage().parse(":prefix.only "), "prefix without a command is rejected");
+        check(!new IrcMessage().parse(""), "empty line is rejected");
+    }
+
+    private static void lineEnds(){
+        IrcMessage m = parse(":n!u@h PRIVMSG #c :hello\r\n");
+        check("hello".equals(m.last()), "CR/LF stripped: [" + m.last() + "]");
+        check(":n!u@h PRIVMSG #c :hello".equals(m.toString()), "toString without CR/LF");
+
+        m = parse("PING :x\n");
+        check("x".equals(m.last()), "LF alone stripped");
+
+        m = parse("PING :x\r");
+        check("x".equals(m.last()), "CR alone stripped");
+
+        char[] buf = "junk:n!u@h PRIVMSG #c :in a buffer\r\nmore".toCharArray();
+        m = new IrcMessage();
+        check(m.parse(buf, 4, buf.length - 8), "parse a slice of a buffer");
+        check("in a buffer".equals(m.last()) && "n".equals(m.nick()), "slice parsed in place: " + m.last());
+        check(m.buffer() == buf, "no copy made");
+
+        m = new IrcMessage(); // reused for a longer line, then a shorter one
+        StringBuilder longText = new StringBuilder();
+        for(int i = 0; i < 1000; i++){longText.append('x');}
+        check(m.parse("PRIVMSG #c :" + longText) && m.last().length() == 1000, "line longer than the buffer");
+        check(m.parse("PING :y") && "y".equals(m.last()) && m.paramCount() == 1, "reused after a longer line");
+    }
+
+    private static IrcMessage parse(String line){
+        IrcMessage m = new IrcMessage();
+        if(!m.parse(line)){
+            check(false, "didn't parse: " + line);
+        }
+        return m;
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok){
+            failures++;
+            System.out.println("FAILED " + what);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Which nicks are online on a session's server, as far as we know.
+ *
+ * Nicks are learnt from traffic (NAMES, JOIN, PART, messages, NICK and QUIT)
+ * and from ISON replies, and each answer is trusted for a while: ONLINE_TTL
+ * for nicks seen online, OFFLINE_TTL for nicks found missing. A check for a
+ * nick that is known answers at once; otherwise the nick waits a moment so
+ * that checks made together go out as one ISON with many nicks. The ISONs
+ * in flight are kept in order, so each 303 reply is matched to the request
+ * it answers and every check waiting on it is answered.
+ *
+ * Checks outlive a dropped connection: what was waiting is asked again
+ * once the session has logged in again, and answered as offline if the
+ * session ends instead, so every check hears back.
+ *
+ * Thread safe: checks come from the UI, traffic from the event loop.
+ */
+public class PresenceCache {
+    public static final long ONLINE_TTL = 5 * 60 * 1000;  // millis a seen nick is trusted
+    public static final long OFFLINE_TTL = 30 * 1000;     // millis a missing nick is trusted
+    public static final long BATCH_MILLIS = 50;           // how long checks wait to be batched
+    private static final int MAX_ISON = 400;              // characters of nicks per ISON line
+    private static final int MIN_SWEEP = 1024;
+
+    private final IrcSession session;
+    private final Map<String, Presence> known = new HashMap<String, Presence>();  // by folded nick
+    private final Map<String, List<Consumer<Boolean>>> waiting = new HashMap<String, List<Consumer<Boolean>>>();
+    private final Map<String, String> pending = new LinkedHashMap<String, String>(); // not yet asked about
+    private final Deque<String[]> inFlight = new ArrayDeque<String[]>(); // ISONs sent, oldest first
+    private CaseMapping caseMapping = CaseMapping.RFC1459;
+    private boolean batchScheduled = false;
+    private int sweepAt = MIN_SWEEP;
+
+    public PresenceCache(IrcSession session){
+        this.session = session;
+    }
+
+    /**
+     * when a nick was last known to be online or offline
+     */
+    private static class Presence {
+        boolean online;
+        long expires;
+    }
+
+    public synchronized void setCaseMapping(CaseMapping cm){
+        if(cm == caseMapping){return;}
+        caseMapping = cm;
+        known.clear(); // folded differently now
+    }
+
+    /**
+     * TRUE or FALSE if it is known whether the nick is online, null if not
+     */
+    public synchronized Boolean isOnline(String nick){
+        Presence p = known.get(caseMapping.fold(nick));
+        if(p == null || p.expires - System.currentTimeMillis() < 0){return null;}
+        return p.online;
+    }
+
+    /**
+     * Calls then with whether the nick is online: at once if that is known,
+     * otherwise (on the event loop) when the server has answered an ISON
+     * asking about it.
+     */
+    public void check(String nick, Consumer<Boolean> then){
+        Boolean online;
+        synchronized(this){
+            online = isOnline(nick);
+            if(online == null){
+                String key = caseMapping.fold(nick);
+                List<Consumer<Boolean>> list = waiting.get(key);
+                if(list == null){ // not asked about yet
+                    list = new ArrayList<Consumer<Boolean>>(1);
+                    waiting.put(key, list);
+                    pending.put(key, nick);
+                }
+                list.add(then);
+                if(!batchScheduled){ // not connected yet: loggedIn sends it
+                    batchScheduled = session.schedule(this::sendPending, BATCH_MILLIS);
+                }
+                return;
+            }
+        }
+        then.accept(online);
+    }
+
+    /**
+     * the nick was seen on the server
+     */
+    public void seen(String nick){
+        answer(nick, true, ONLINE_TTL);
+    }
+
+    /**
+     * the nick has left the server
+     */
+    public void gone(String nick){
+        answer(nick, false, OFFLINE_TTL);
+    }
+
+    /**
+     * Reads the nicks of a NAMES reply (353), skipping their mode prefixes
+     * (the symbols the server's 005 PREFIX gives, as the session's
+     * ChannelMembership read them).
+     */
+    public void names(IrcMessage msg){
+        String symbols = session.members().prefixSymbols();
+        String names = msg.last();
+        int i = 0;
+        while(i < names.length()){
+            int end = names.indexOf(' ', i);
+            if(end < 0){end = names.length();}
+            int start = i;
+            while(start < end && symbols.indexOf(names.charAt(start)) >= 0){start++;}
+            if(start < end){
+                seen(names.substring(start, end));
+            }
+            i = end + 1;
+        }
+    }
+
+    /**
+     * Matches an ISON reply (303) to the oldest ISON in flight: the nicks
+     * in the reply are online and the rest of the request are not.
+     */
+    public void replied(IrcMessage msg){
+        String[] asked;
+        Set<String> online = new HashSet<String>();
+        synchronized(this){
+            asked = inFlight.poll();
+            if(asked == null){return;} // not one of ours
+            for(String nick : msg.last().split(" ")){
+                if(!nick.isEmpty()){online.add(caseMapping.fold(nick));}
+            }
+        }
+        for(String nick : asked){
+            boolean on = online.contains(caseMapping.fold(nick));
+            answer(nick, on, on ? ONLINE_TTL : OFFLINE_TTL);
+        }
+    }
+
+    /**
+     * the connection has gone: forgets what is known, and keeps the checks
+     * still waiting (including those in ISONs that will never be answered)
+     * to ask about after the next login
+     */
+    public synchronized void clear(){
+        known.clear();
+        for(String[] asked : inFlight){
+            for(String nick : asked){pending.put(caseMapping.fold(nick), nick);}
+        }
+        inFlight.clear();
+        batchScheduled = false;
+        sweepAt = MIN_SWEEP;
+    }
+
+    /**
+     * the session has logged in: asks about the nicks checked while it
+     * was not
+     */
+    public synchronized void loggedIn(){
+        if(!pending.isEmpty() && !batchScheduled){
+            batchScheduled = session.schedule(this::sendPending, BATCH_MILLIS);
+        }
+    }
+
+    /**
+     * the session is over: answers every check still waiting as offline,
+     * as nothing can be found out now
+     */
+    public void ended(){
+        Map<String, List<Consumer<Boolean>>> unanswered;
+        synchronized(this){
+            unanswered = new HashMap<String, List<Consumer<Boolean>>>(waiting);
+            waiting.clear();
+            pending.clear();
+            inFlight.clear();
+        }
+        for(List<Consumer<Boolean>> list : unanswered.values()){
+            for(Consumer<Boolean> then : list){
+                then.accept(false);
+            }
+        }
+    }
+
+    /**
+     * records what is now known about the nick and answers the checks
+     * waiting on it
+     */
+    private void answer(String nick, boolean online, long ttl){
+        List<Consumer<Boolean>> list;
+        synchronized(this){
+            String key = caseMapping.fold(nick);
+            Presence p = known.get(key);
+            if(p == null){
+                p = new Presence();
+                known.put(key, p);
+                if(known.size() >= sweepAt){sweep();}
+            }
+            p.online = online;
+            p.expires = System.currentTimeMillis() + ttl;
+            list = waiting.remove(key);
+            if(list == null){return;}
+            pending.remove(key);
+        }
+        for(Consumer<Boolean> then : list){
+            then.accept(online);
+        }
+    }
+
+    /**
+     * drops the expired entries, so the cache only grows with the nicks
+     * seen within a TTL
+     */
+    private void sweep(){
+        long now = System.currentTimeMillis();
+        known.values().removeIf(p -> p.expires - now < 0);
+        sweepAt = Math.max(MIN_SWEEP, known.size() * 2);
+    }
+
+    /**
+     * sends the nicks waiting to be asked about, as few ISONs as fit them
+     */
+    private void sendPending(){
+        List<String> lines = new ArrayList<String>();
+        synchronized(this){
+            batchScheduled = false;
+            List<String> batch = new ArrayList<String>();
+            StringBuilder line = new StringBuilder("ISON");
+            for(String nick : pending.values()){
+                if(!batch.isEmpty() && line.length() + 1 + nick.length() > MAX_ISON){
+                    inFlight.add(batch.toArray(new String[batch.size()]));
+                    lines.add(line.toString());
+                    batch.clear();
+                    line.setLength(4);
+                }
+                batch.add(nick);
+                line.append(' ').append(nick);
+            }
+            if(!batch.isEmpty()){
+                inFlight.add(batch.toArray(new String[batch.size()]));
+                lines.add(line.toString());
+            }
+            pending.clear();
+        }
+        for(String line : lines){
+            session.send(line);
+        }
+    }
+}
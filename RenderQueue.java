@@ -0,0 +1,60 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.Timer;
+
+/**
+ * Collects the text windows that have new lines waiting and updates them
+ * together on the Swing event thread once per frame tick. Network threads
+ * only queue lines (see TextWindow.interact), so a flood of messages costs
+ * one append, repaint and layout per window per frame, not one per line.
+ */
+public class RenderQueue {
+    public static final int FRAME_MILLIS = 33;   // about 30 updates a second
+
+    private final Queue<TextWindow> dirty = new ConcurrentLinkedQueue<TextWindow>();
+    private final Timer timer;
+
+    public RenderQueue(int frameMillis){
+        timer = new Timer(frameMillis, e -> drain());
+        timer.setCoalesce(true);
+        ClientMetrics.METRICS.watchRenderBacklog(this::backlog);
+    }
+
+    /**
+     * asks for w to be flushed on the next frame tick; the window makes
+     * sure it is only scheduled once per tick
+     */
+    public void schedule(TextWindow w){
+        dirty.add(w);
+        if(!timer.isRunning()){
+            timer.start();
+        }
+    }
+
+    /**
+     * the number of windows waiting for the next tick
+     */
+    public int backlog(){
+        return dirty.size();
+    }
+
+    /**
+     * runs on the event thread: flushes the windows that were waiting when
+     * the tick began, and stops ticking while there is nothing to do. A
+     * window that schedules itself again while flushing (its frame isn't
+     * made yet) waits for the next tick rather than being flushed again in
+     * this one, which would never end.
+     */
+    private void drain(){
+        long start = System.nanoTime();
+        TextWindow w;
+        for(int n = dirty.size(); n > 0 && (w = dirty.poll()) != null; n--){
+            w.flush();
+        }
+        ClientMetrics.METRICS.renderNanos.record(System.nanoTime() - start);
+        timer.stop();
+        if(!dirty.isEmpty()){ // something arrived while stopping
+            timer.start();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * How a session authenticates with SASL while logging in (IRCv3 sasl
+ * capability): PLAIN with an account name and password, or EXTERNAL with
+ * the client certificate of the TLS connection.
+ */
+public class Sasl {
+    public static final String PLAIN = "PLAIN";
+    public static final String EXTERNAL = "EXTERNAL";
+    private static final int CHUNK = 400; // the most an AUTHENTICATE line may carry
+
+    private final String mechanism;
+    private final String account;
+    private final String password;
+
+    private Sasl(String mechanism, String account, String password){
+        this.mechanism = mechanism;
+        this.account = account;
+        this.password = password;
+    }
+
+    /**
+     * logs in to the account with the password; only sensible over TLS, as
+     * the password is sent as it is
+     */
+    public static Sasl plain(String account, String password){
+        return new Sasl(PLAIN, account, password);
+    }
+
+    /**
+     * logs in with the client certificate the TLS connection presented
+     */
+    public static Sasl external(){
+        return new Sasl(EXTERNAL, "", "");
+    }
+
+    public String mechanism(){
+        return mechanism;
+    }
+
+    /**
+     * true if the server's sasl capability value (its mechanisms, or "" if
+     * it doesn't list them) allows this mechanism
+     */
+    boolean offeredIn(String mechanisms){
+        return mechanisms.isEmpty() || Arrays.asList(mechanisms.split(",")).contains(mechanism);
+    }
+
+    /**
+     * The AUTHENTICATE lines that answer the server's "AUTHENTICATE +":
+     * the base64 response in 400 byte pieces, ending with "+" if the last
+     * piece is full (or the response is empty).
+     */
+    List<String> response(){
+        String encoded = "";
+        if(mechanism.equals(PLAIN)){
+            byte[] raw = (account + "\0" + account + "\0" + password).getBytes(StandardCharsets.UTF_8);
+            encoded = Base64.getEncoder().encodeToString(raw);
+        }
+        List<String> lines = new ArrayList<String>();
+        for(int i = 0; i < encoded.length(); i += CHUNK){
+            lines.add("AUTHENTICATE " + encoded.substring(i, Math.min(encoded.length(), i + CHUNK)));
+        }
+        if(encoded.length() % CHUNK == 0){
+            lines.add("AUTHENTICATE +");
+        }
+        return lines;
+    }
+
+    public String toString(){
+        return mechanism.equals(PLAIN) ? PLAIN + " as " + account : mechanism;
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * An append-only, memory-mapped file holding the history of one text
+ * window, so a window only has to keep its last few lines on the heap.
+ *
+ * After an 8 byte header holding the end of the data, each line is stored
+ * as [length][UTF-8 bytes][length]. The trailing length lets history be
+ * read backwards from any record boundary without an index: readBefore
+ * maps the region just before an offset and walks back through it.
+ * Appends go through a mapping of the current 1MB chunk of the file.
+ */
+public class ScrollbackLog implements Closeable {
+    private static final int HEADER = 8;
+    private static final int CHUNK = 1 << 20;        // size of each write mapping
+    private static final int PAGE_BYTES = 64 * 1024; // size of each read mapping
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+    private long end;
+
+    public ScrollbackLog(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() < HEADER;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+        end = fresh ? HEADER : header.getLong(0);
+        if(end < HEADER || end > channel.size()){ // damaged header: start again
+            end = HEADER;
+        }
+        header.putLong(0, end);
+        chunkStart = end;
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK);
+    }
+
+    /**
+     * opens the log for a window target in ~/.irc-chat/scrollback, in a
+     * directory of its own for each server (host:port), so the same
+     * channel on two networks has two logs
+     */
+    public static ScrollbackLog open(String server, String target) throws IOException {
+        Path dir = Paths.get(System.getProperty("user.home"), ".irc-chat", "scrollback", fileName(server));
+        Files.createDirectories(dir);
+        return new ScrollbackLog(dir.resolve(fileName(target) + ".log"));
+    }
+
+    /**
+     * the name in lower case (targets differ only by case on the server
+     * too), with every UTF-8 byte that isn't a safe file name character
+     * written as %XX, so different names never share a file
+     */
+    static String fileName(String name){
+        StringBuilder sb = new StringBuilder();
+        for(byte b : name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)){
+            char c = (char)(b & 0xff);
+            if((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || "#&._-".indexOf(c) >= 0){
+                sb.append(c);
+            }else{
+                sb.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * the offset just past the last line, where readBefore starts from
+     * for the newest history
+     */
+    public long end(){
+        return end;
+    }
+
+    /**
+     * adds a line and returns the offset it was stored at
+     */
+    public long append(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int size = bytes.length + 8;
+        if(end + size > chunkStart + chunk.capacity()){
+            chunkStart = end;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, Math.max(CHUNK, size));
+        }
+        long start = end;
+        chunk.position((int)(start - chunkStart));
+        chunk.putInt(bytes.length).put(bytes).putInt(bytes.length);
+        end += size;
+        header.putLong(0, end);
+        return start;
+    }
+
+    /**
+     * Reads up to maxLines lines stored before offset (a value from append
+     * or end, or a result of an earlier call), adding them to out oldest
+     * first. Returns the offset of the oldest line read, to continue from;
+     * it equals offset if there is no more history.
+     */
+    public long readBefore(long offset, int maxLines, List<String> out) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        long pos = Math.min(offset, end);
+        while(lines.size() < maxLines && pos > HEADER){
+            long regionStart = Math.max(HEADER, pos - PAGE_BYTES);
+            if(pos - regionStart >= 4){ // make sure the whole newest record is in the region
+                ByteBuffer len = ByteBuffer.allocate(4);
+                channel.read(len, pos - 4);
+                regionStart = Math.max(HEADER, Math.min(regionStart, pos - 8 - len.getInt(0)));
+            }
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, pos - regionStart);
+            int rel = (int)(pos - regionStart);
+            while(lines.size() < maxLines && rel >= 8){
+                int len = region.getInt(rel - 4);
+                int recordStart = rel - 8 - len;
+                if(len < 0 || recordStart < 0){break;}
+                byte[] bytes = new byte[len];
+                region.position(recordStart + 4);
+                region.get(bytes);
+                lines.add(new String(bytes, StandardCharsets.UTF_8));
+                rel = recordStart;
+            }
+            long next = regionStart + rel;
+            if(next == pos){break;} // damaged record: stop here
+            pos = next;
+        }
+        Collections.reverse(lines);
+        out.addAll(lines);
+        return pos;
+    }
+
+    public void close() throws IOException {
+        chunk.force();
+        header.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.IOException;
+
+/**
+ * Receives the events of an IrcSession. Methods are called on the event
+ * loop thread that runs the session's connection, so they should not block.
+ */
+public interface SessionListener {
+    /**
+     * the server accepted the login (004 received)
+     */
+    void loggedIn(IrcSession s);
+
+    /**
+     * the server refused the login, e.g. because the nick is in use
+     */
+    void loginFailed(IrcSession s, String reason);
+
+    /**
+     * a line arrived after login. The message is reused for the next line,
+     * so anything kept must be copied out of it before returning.
+     */
+    void lineReceived(IrcSession s, IrcMessage msg);
+
+    /**
+     * an IRCv3 batch has ended; its lines have already been applied to the
+     * session's state. By default each line is passed to lineReceived.
+     */
+    default void batchReceived(IrcSession s, IrcBatch b){
+        s.replay(b, msg -> lineReceived(s, msg));
+    }
+
+    /**
+     * the connection is closed for good; cause is null if it was closed on
+     * purpose
+     */
+    void disconnected(IrcSession s, IOException cause);
+
+    /**
+     * the connection failed and will be tried again after the delay; the
+     * session logs in again (loggedIn is called again) and rejoins its
+     * channels by itself
+     */
+    default void reconnecting(IrcSession s, IOException cause, long delayMillis){
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Holds any number of IrcSessions, each to its own server. Sessions are
+ * spread over a fixed set of IrcEventLoop threads (one per core, at most
+ * four by default), and DNS lookups for new connections run on a small
+ * bounded pool, so the number of threads does not grow with the number of
+ * connections.
+ */
+public class SessionManager {
+    private static final int MAX_LOOPS = 4;
+    private static final int RESOLVER_THREADS = 2;
+    public static final long MIN_RETRY_MILLIS = 1000;          // the first reconnect waits up to this
+    public static final long MAX_RETRY_MILLIS = 5 * 60 * 1000; // and the waits double up to this
+
+    private final IrcEventLoop[] loops;
+    private final ExecutorService resolver;
+    private final Map<Integer, IrcSession> sessions = new ConcurrentHashMap<Integer, IrcSession>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final IntSupplier depth = this::queueDepth; // kept so shutdown can stop the metrics watching it
+
+    public SessionManager() throws IOException {
+        this(Math.min(MAX_LOOPS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public SessionManager(int threads) throws IOException {
+        loops = new IrcEventLoop[Math.max(1, threads)];
+        for(int i = 0; i < loops.length; i++){
+            loops[i] = new IrcEventLoop("irc-event-loop-" + i);
+        }
+        resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), r -> {
+                Thread t = new Thread(r, "irc-resolver");
+                t.setDaemon(true);
+                return t;
+            });
+        ((ThreadPoolExecutor)resolver).allowCoreThreadTimeOut(true);
+        ClientMetrics.METRICS.watchQueueDepth(depth);
+    }
+
+    /**
+     * the lines waiting to be sent over all sessions
+     */
+    public int queueDepth(){
+        int n = 0;
+        for(IrcSession s : sessions.values()){
+            n += s.queueDepth();
+        }
+        return n;
+    }
+
+    /**
+     * Starts a new session to host:port that logs in with the given nick.
+     * The connection is made in the background; the listener hears about
+     * the login (or its failure).
+     */
+    public IrcSession open(String host, int port, String nick, String realname, SessionListener listener){
+        return open(host, port, null, null, nick, realname, listener);
+    }
+
+    /**
+     * Starts a new session as above, over TLS made with the given context
+     * if it isn't null (see TlsLayer.defaultContext), authenticating with
+     * SASL if sasl isn't null. Reconnects use the same context, so its
+     * session cache lets them resume the TLS session.
+     */
+    public IrcSession open(String host, int port, SSLContext tls, Sasl sasl, String nick, String realname, SessionListener listener){
+        int id = nextId.getAndIncrement();
+        IrcSession s = new IrcSession(id, host, port, nick, realname, listener, this, tls, sasl);
+        sessions.put(id, s);
+        start(s);
+        return s;
+    }
+
+    /**
+     * makes the session's connection in the background, and runs it on the
+     * session's event loop
+     */
+    private void start(IrcSession s){
+        IrcEventLoop loop = loops[s.id() % loops.length];
+        resolver.execute(() -> {
+            if(s.isClosing() || !sessions.containsKey(s.id())){return;}
+            IrcConnection c = new IrcConnection(s.host(), s.port(), s, s.tlsContext()); // blocks on DNS
+            s.attach(c);
+            if(s.isClosing()){c.close();} // closed during the lookup: the loop reports it rather than connecting
+            loop.register(c);
+        });
+    }
+
+    /**
+     * Connects the session again after a wait, which doubles with each
+     * failed attempt (from MIN_RETRY_MILLIS up to MAX_RETRY_MILLIS) and is
+     * randomised so that many clients dropped at once don't all come back
+     * at once. Returns the wait in milliseconds.
+     */
+    long reconnect(IrcSession s, int attempt){
+        long cap = MAX_RETRY_MILLIS;
+        if(attempt < 20){cap = Math.min(MAX_RETRY_MILLIS, MIN_RETRY_MILLIS << attempt);}
+        long delay = cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+        loops[s.id() % loops.length].schedule(() -> {
+            if(s.isClosing() || !sessions.containsKey(s.id())){return;}
+            ClientMetrics.METRICS.reconnects.increment();
+            start(s);
+        }, delay);
+        return delay;
+    }
+
+    /**
+     * closes the session's connection and forgets it
+     */
+    public void close(IrcSession s){
+        sessions.remove(s.id());
+        s.close();
+    }
+
+    public IrcSession get(int id){
+        return sessions.get(id);
+    }
+
+    /**
+     * all sessions that have not been closed (read only)
+     */
+    public Collection<IrcSession> sessions(){
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * closes every session and stops the threads
+     */
+    public void shutdown(){
+        for(IrcSession s : sessions.values()){
+            close(s);
+        }
+        resolver.shutdown();
+        for(IrcEventLoop loop : loops){
+            loop.shutdown();
+        }
+        ClientMetrics.METRICS.unwatchQueueDepth(depth);
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.*;
+
+/**
+ * Finds the window (or other per-target object) for a channel or nick in
+ * constant time, matching names by the server's case mapping.
+ *
+ * Channels live in a concurrent map and stay until removed. Queries (private
+ * conversations) are kept in least-recently-used order; once there are more
+ * than maxQueries of them, the one idle the longest is dropped and handed to
+ * the eviction callback (e.g. to close its window).
+ */
+public class TargetRegistry<T> {
+    public static final int DEFAULT_MAX_QUERIES = 50;
+
+    private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+    private final Function<String, T> factory;
+    private final Map<String, T> channels = new ConcurrentHashMap<String, T>();
+    private final LinkedHashMap<String, T> queries;
+
+    /**
+     * factory makes the object for a target the first time it is asked
+     * for; onEvict is told about queries dropped for being idle
+     */
+    public TargetRegistry(int maxQueries, Function<String, T> factory, Consumer<T> onEvict){
+        this.factory = factory;
+        this.queries = new LinkedHashMap<String, T>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<String, T> eldest){
+                if(size() <= maxQueries){return false;}
+                onEvict.accept(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * whether a target names a channel rather than a nick
+     */
+    public static boolean isChannel(CharSequence target){
+        if(target.length() == 0){return false;}
+        char c = target.charAt(0);
+        return c == '#' || c == '&' || c == '+' || c == '!';
+    }
+
+    /**
+     * sets the case mapping the server uses (from its CASEMAPPING token);
+     * should be set before any targets are added
+     */
+    public void setCaseMapping(CaseMapping m){
+        caseMapping = m;
+    }
+
+    /**
+     * the object for the target, or null if there is none
+     */
+    public T get(String target){
+        String key = caseMapping.fold(target);
+        if(isChannel(key)){
+            return channels.get(key);
+        }
+        synchronized(queries){
+            return queries.get(key);
+        }
+    }
+
+    /**
+     * the object for the target, made by the factory if there is none yet
+     */
+    public T getOrCreate(String target){
+        String key = caseMapping.fold(target);
+        if(isChannel(key)){
+            return channels.computeIfAbsent(key, k -> factory.apply(target));
+        }
+        synchronized(queries){
+            T t = queries.get(key);
+            if(t == null){
+                t = factory.apply(target);
+                queries.put(key, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * removes the target and returns its object, or null if there was none
+     */
+    public T remove(String target){
+        String key = caseMapping.fold(target);
+        if(isChannel(key)){
+            return channels.remove(key);
+        }
+        synchronized(queries){
+            return queries.remove(key);
+        }
+    }
+
+    public int size(){
+        synchronized(queries){
+            return channels.size() + queries.size();
+        }
+    }
+}
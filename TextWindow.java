@@ -1,67 +1,311 @@
-import ecs100.*;
-import java.util.*;
-import java.io.*;
-import java.awt.Color;
-
-import javax.swing.JFrame;
-import javax.swing.JTextArea;
-import javax.swing.JScrollPane;
-import java.awt.BorderLayout;
-
-/**
- * This is the class for the window that will contain the chatlogs between
- * the user and the target (channel or user). This is so there is an uninteruptted
- * area in the main class for the user to be able to to type up their responses
- * and their communication.
- */
-public class TextWindow
-{
-    JTextArea textOutput;
-    String target;
-    JFrame frame;
-    /**
-     * Constructor for objects of class TextWindow
-     */
-    public TextWindow(String c)
-    {
-        target = c;
-        textOutput = createNewFrame(); 
-    }
-    /**
-     * creates a new frame to have all of the text messages in the channel shown
-     */
-    public JTextArea createNewFrame(){
-        frame = new JFrame(target);    // make a frame
-        frame.setSize(50,75);// set its size
-        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE); // make it close properly
-
-        JTextArea textA = new JTextArea(10,30);  // text area (lines, chars per line)
-        JScrollPane textSP = new JScrollPane(textA); // put scrollbars around it
-        frame.add(textSP, BorderLayout.CENTER);              // add it to the frame.
-        frame.pack();                                        // pack things in to the frame
-        frame.setVisible(true);                              // make it visible.
-        return textA;
-    }
-    /**
-     * adds to the text log by adding the text that was input or output
-     */
-    public void interact(String s){
-        textOutput.append(s + "\n");
-    }
-    /**
-     * the text windows are checked if they equal by comparing the channel that
-     * they are displaying
-     */
-    public boolean equals(String otherChannel){
-        if(otherChannel.equals(target)){return true;}
-        else{return false;}
-    }
-    /**
-     * removes the Jframe of this class
-     */
-    public void remove(){
-        // borrowed from http://stackoverflow.com/questions/1234912/how-to-programmatically-close-a-jframe
-        //frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
-        frame.dispose();
-    }
-}
+import ecs100.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.*;
+import java.awt.Color;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import javax.swing.JTextArea;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import java.awt.BorderLayout;
+import java.awt.event.AdjustmentEvent;
+
+/**
+ * This is the class for the window that will contain the chatlogs between
+ * the user and the target (channel or user). This is so there is an uninteruptted
+ * area in the main class for the user to be able to to type up their responses
+ * and their communication.
+ *
+ * Lines can be added from any thread; they are queued and put into the text
+ * area in one go on the Swing event thread at the next frame tick (see
+ * RenderQueue). Only the last MAX_LINES lines are kept in the text area;
+ * every line is also written to the window's ScrollbackLog, and scrolling to
+ * the top (or the "Earlier lines" button) pages older lines back in from it.
+ * The paged in lines are let go again once the view is back at the bottom.
+ */
+public class TextWindow
+{
+    public static final int MAX_LINES = 1000;   // lines of scrollback kept in the text area
+    public static final int PAGE_LINES = 200;   // lines paged in from the history at a time
+    public static final int MAX_HISTORY = 5 * PAGE_LINES; // lines of paged in history kept above them
+    static final RenderQueue renderer = new RenderQueue(RenderQueue.FRAME_MILLIS);
+
+    JTextArea textOutput;   // only used on the event thread
+    JScrollBar scrollBar;
+    String target;
+    String server;          // host:port, so each network keeps its own history
+    JFrame frame;
+    ScrollbackLog history;  // null if the log file couldn't be opened
+
+    Queue<String> pending = new ConcurrentLinkedQueue<String>(); // lines waiting for the next frame
+    AtomicBoolean scheduled = new AtomicBoolean(false);
+    static final int FIRST_LINES = 16;      // the ring starts this big and doubles up to MAX_LINES,
+                                            // so a quiet channel's window costs little
+    int[] lineLengths = new int[FIRST_LINES]; // ring buffer of the lengths of the lines shown
+    long[] lineOffsets = new long[FIRST_LINES]; // and of where they are in the history log
+    int firstLine = 0;                      // index of the oldest line in the ring
+    int lineCount = 0;
+    int historyChars = 0;                   // length of the paged in history at the top
+    long historyCursor = -1;                // log offset of the oldest paged in line
+    int[] historyLengths = new int[MAX_HISTORY]; // ring of the lengths of the paged in lines
+    int historyFirst = 0;                   // index of the oldest paged in line
+    int historyCount = 0;
+    boolean detached = false;               // only history is shown: the newest lines wait in the log
+    volatile boolean broken = false;        // the frame couldn't be made: lines are dropped
+    /**
+     * Constructor for objects of class TextWindow.
+     * The frame is made on the event thread, as Swing requires.
+     */
+    public TextWindow(String server, String c)
+    {
+        this.server = server;
+        target = c;
+        SwingUtilities.invokeLater(() -> {
+            try{
+                textOutput = createNewFrame();
+            }catch(RuntimeException e){
+                System.out.println("Failed making window for " + target + " " + e);
+                broken = true;
+            }
+        });
+    }
+    /**
+     * creates a new frame to have all of the text messages in the channel shown
+     */
+    public JTextArea createNewFrame(){
+        frame = new JFrame(target);    // make a frame
+        frame.setSize(50,75);// set its size
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE); // make it close properly
+
+        JTextArea textA = new JTextArea(10,30);  // text area (lines, chars per line)
+        JScrollPane textSP = new JScrollPane(textA); // put scrollbars around it
+        scrollBar = textSP.getVerticalScrollBar();
+        scrollBar.addAdjustmentListener(this::scrolled);
+        JButton earlier = new JButton("Earlier lines");
+        earlier.addActionListener(e -> loadHistory());
+        frame.add(earlier, BorderLayout.NORTH);
+        frame.add(textSP, BorderLayout.CENTER);              // add it to the frame.
+        frame.pack();                                        // pack things in to the frame
+        frame.setVisible(true);                              // make it visible.
+        try{
+            history = ScrollbackLog.open(server, target);
+        }catch(IOException e){
+            System.out.println("Failed opening scrollback " + e);
+        }
+        return textA;
+    }
+    /**
+     * adds to the text log by adding the text that was input or output.
+     * The line is shown at the next frame tick.
+     */
+    public void interact(String s){
+        pending.add(s);
+        if(scheduled.compareAndSet(false, true)){
+            renderer.schedule(this);
+        }
+    }
+    /**
+     * adds several lines at once (e.g. a batch's), shown together at the
+     * next frame tick
+     */
+    public void interact(Collection<String> lines){
+        pending.addAll(lines);
+        if(scheduled.compareAndSet(false, true)){
+            renderer.schedule(this);
+        }
+    }
+    /**
+     * runs on the event thread: appends every waiting line in one go,
+     * then drops the oldest lines past MAX_LINES. The ring of line lengths
+     * says how many characters to cut from the front without searching
+     * the text for line breaks.
+     */
+    void flush(){
+        scheduled.set(false);
+        if(broken){ // there will never be a frame to show them in
+            pending.clear();
+            return;
+        }
+        if(textOutput == null){ // the frame isn't made yet: try next tick
+            if(scheduled.compareAndSet(false, true)){renderer.schedule(this);}
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        int drop = 0;
+        String line;
+        while((line = pending.poll()) != null){
+            if(!detached){sb.append(line).append('\n');}
+            if(lineCount == MAX_LINES){ // the oldest line goes
+                if(detached){ // it isn't shown: only the ring moves on
+                }else if(historyChars > 0 && historyCount == MAX_HISTORY){ // no more room above: stop showing new lines
+                    detach();
+                    sb.setLength(0); // they are in the log, for when the view comes back down
+                }else if(historyChars > 0){ // unless history is being read: then it joins it
+                    historyChars += lineLengths[firstLine];
+                    historyLengths[(historyFirst + historyCount++) % MAX_HISTORY] = lineLengths[firstLine];
+                }else{
+                    drop += lineLengths[firstLine];
+                }
+                firstLine = (firstLine + 1) % lineLengths.length;
+                lineCount--;
+            }else if(lineCount == lineLengths.length){
+                growRing();
+            }
+            int next = (firstLine + lineCount) % lineLengths.length;
+            lineLengths[next] = line.length() + 1;
+            lineOffsets[next] = log(line);
+            lineCount++;
+        }
+        if(sb.length() == 0){return;}
+        textOutput.append(sb.toString());
+        if(drop > 0){
+            textOutput.replaceRange("", 0, drop);
+        }
+    }
+    /**
+     * stops showing the newest lines, keeping only the paged in history;
+     * new lines only go to the log and the ring until the view is back at
+     * the bottom (see attach)
+     */
+    private void detach(){
+        textOutput.replaceRange("", historyChars, textOutput.getDocument().getLength());
+        detached = true;
+    }
+    /**
+     * doubles the ring of line lengths and offsets (up to MAX_LINES),
+     * unrolling it so the oldest line is first
+     */
+    private void growRing(){
+        int size = Math.min(lineLengths.length * 2, MAX_LINES);
+        int[] lengths = new int[size];
+        long[] offsets = new long[size];
+        for(int i = 0; i < lineCount; i++){
+            lengths[i] = lineLengths[(firstLine + i) % lineLengths.length];
+            offsets[i] = lineOffsets[(firstLine + i) % lineLengths.length];
+        }
+        lineLengths = lengths;
+        lineOffsets = offsets;
+        firstLine = 0;
+    }
+    /**
+     * writes a line to the history, returning where it went (-1 if it couldn't be)
+     */
+    private long log(String line){
+        if(history == null){return -1;}
+        try{
+            return history.append(line);
+        }catch(IOException e){
+            System.out.println("Failed writing scrollback " + e);
+            history = null;
+            return -1;
+        }
+    }
+    /**
+     * pages in older lines when the view reaches the top, and lets them go
+     * when it is back at the bottom
+     */
+    private void scrolled(AdjustmentEvent e){
+        if(e.getValueIsAdjusting() || scrollBar.getMaximum() <= scrollBar.getVisibleAmount()){return;}
+        if(scrollBar.getValue() == 0){
+            loadHistory();
+        }else if(historyChars > 0 && scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum()){
+            if(detached){
+                attach();
+            }else{
+                textOutput.replaceRange("", 0, historyChars);
+            }
+            historyChars = 0;
+            historyCursor = -1;
+            historyCount = 0;
+        }
+    }
+    /**
+     * shows the newest lines again in place of the history, reading them
+     * back from the log
+     */
+    private void attach(){
+        detached = false;
+        List<String> lines = new ArrayList<String>();
+        try{
+            if(history != null){history.readBefore(history.end(), lineCount, lines);}
+        }catch(IOException e){
+            System.out.println("Failed reading scrollback " + e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String line : lines){sb.append(line).append('\n');}
+        textOutput.setText(sb.toString());
+        int shown = Math.min(lines.size(), lineCount); // the ring's newest lines, as read back
+        firstLine = (firstLine + lineCount - shown) % lineLengths.length;
+        lineCount = shown;
+    }
+    /**
+     * puts the PAGE_LINES lines before the oldest one shown at the top,
+     * keeping the view on the same text
+     */
+    void loadHistory(){
+        if(history == null){return;}
+        long from = history.end();
+        if(historyChars > 0){from = historyCursor;}
+        else if(lineCount > 0){from = lineOffsets[firstLine];}
+        List<String> lines = new ArrayList<String>();
+        try{
+            historyCursor = history.readBefore(from, PAGE_LINES, lines);
+        }catch(IOException e){
+            System.out.println("Failed reading scrollback " + e);
+            return;
+        }
+        if(lines.isEmpty()){return;}
+        if(historyCount + lines.size() > MAX_HISTORY && !detached){
+            detach(); // the newest lines go first, then the newest history
+        }
+        int cut = 0;
+        while(historyCount + lines.size() > MAX_HISTORY){
+            historyCount--;
+            cut += historyLengths[(historyFirst + historyCount) % MAX_HISTORY];
+        }
+        if(cut > 0){
+            textOutput.replaceRange("", historyChars - cut, historyChars);
+            historyChars -= cut;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(int i = lines.size() - 1; i >= 0; i--){ // newest first, each in front of the last
+            String line = lines.get(i);
+            historyFirst = (historyFirst + MAX_HISTORY - 1) % MAX_HISTORY;
+            historyLengths[historyFirst] = line.length() + 1;
+            historyCount++;
+        }
+        for(String line : lines){sb.append(line).append('\n');}
+        int oldMax = scrollBar.getMaximum();
+        int oldValue = scrollBar.getValue();
+        textOutput.insert(sb.toString(), 0);
+        historyChars += sb.length();
+        SwingUtilities.invokeLater(() -> scrollBar.setValue(oldValue + scrollBar.getMaximum() - oldMax));
+    }
+    /**
+     * the channel or user this window is displaying
+     */
+    public String getTarget(){
+        return target;
+    }
+    /**
+     * removes the Jframe of this class
+     */
+    public void remove(){
+        // borrowed from http://stackoverflow.com/questions/1234912/how-to-programmatically-close-a-jframe
+        //frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
+        pending.clear();
+        SwingUtilities.invokeLater(() -> {
+            if(frame != null){frame.dispose();} // null if it was never made
+            try{
+                if(history != null){history.close();}
+            }catch(IOException e){
+                System.out.println("Failed closing scrollback " + e);
+            }
+            history = null;
+        });
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.security.*;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * TLS for one IrcConnection, over an SSLEngine so it stays non-blocking on
+ * the event loop. The connection reads and writes through it instead of
+ * straight to the socket: read() decrypts into the connection's line
+ * buffer, write() encrypts the lines of a gathering write together.
+ *
+ * The engine is made for the server's host and port, so the SSLContext's
+ * client session cache can resume the TLS session when the same server is
+ * reconnected, skipping most of the handshake. The record buffers are
+ * direct buffers borrowed from a shared BufferPool and returned on close.
+ *
+ * Only used on the connection's event loop thread.
+ */
+public class TlsLayer {
+    public static final int TLS_PORT = 6697;  // the standard IRC over TLS port
+    private static final BufferPool POOL = new BufferPool(recordSize(), 256);
+
+    private final SSLEngine engine;
+    private ByteBuffer netIn;   // encrypted bytes read, not yet decrypted (write mode)
+    private ByteBuffer netOut;  // encrypted bytes not yet written (write mode)
+    private ByteBuffer appIn;   // decrypted bytes that didn't fit the caller's buffer (write mode)
+    private boolean handshaking = true;
+    private long began;         // when the handshake started
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ByteBuffer[] NOTHING = {EMPTY};
+
+    public TlsLayer(SSLContext context, String host, int port){
+        engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS"); // check the certificate is for host
+        engine.setSSLParameters(params);
+        netIn = POOL.take();
+        netOut = POOL.take();
+        appIn = POOL.take();
+    }
+
+    /**
+     * the JVM's default context (its trust store, and any client key set
+     * with javax.net.ssl.keyStore for SASL EXTERNAL)
+     */
+    public static SSLContext defaultContext(){
+        try{
+            return SSLContext.getDefault();
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException("No TLS support", e);
+        }
+    }
+
+    /**
+     * A context that presents the key in the key store and trusts the
+     * certificates in it, e.g. a self-signed test server's, made with
+     *   keytool -genkeypair -alias irc -keyalg EC -dname CN=localhost
+     *     -ext SAN=dns:localhost,ip:127.0.0.1 -keystore test.p12 -storepass changeit
+     */
+    public static SSLContext context(Path keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try(InputStream in = Files.newInputStream(keyStore)){
+            ks.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * big enough for any record, encrypted or not
+     */
+    private static int recordSize(){
+        SSLSession s = defaultContext().createSSLEngine().getSession();
+        return Math.max(s.getPacketBufferSize(), s.getApplicationBufferSize());
+    }
+
+    public void begin() throws IOException {
+        began = System.currentTimeMillis();
+        engine.beginHandshake();
+    }
+
+    /**
+     * true once the handshake is done and lines can be sent
+     */
+    public boolean isReady(){
+        return !handshaking;
+    }
+
+    /**
+     * true if a previous TLS session with the server was resumed, rather
+     * than a new one made (meaningful once ready)
+     */
+    public boolean isResumed(){
+        return engine.getSession().getCreationTime() < began; // made by an earlier handshake
+    }
+
+    /**
+     * the TLS version and cipher suite, e.g. for showing the user
+     */
+    public String describe(){
+        SSLSession s = engine.getSession();
+        return s.getProtocol() + " " + s.getCipherSuite();
+    }
+
+    /**
+     * true if encrypted bytes are waiting for the socket to take them
+     */
+    public boolean hasOutput(){
+        return netOut.position() > 0;
+    }
+
+    /**
+     * true if decrypted bytes are waiting for the caller's buffer to have
+     * room (read() should be called again without waiting for the socket)
+     */
+    public boolean hasInput(){
+        return appIn.position() > 0;
+    }
+
+    /**
+     * Takes the handshake as far as it can go without waiting for the
+     * socket. Returns true once it is done.
+     */
+    public boolean handshake(SocketChannel ch) throws IOException {
+        while(handshaking){
+            HandshakeStatus hs = engine.getHandshakeStatus();
+            switch(hs){
+                case NEED_WRAP:
+                    wrap(NOTHING, 0, 0);
+                    if(!flush(ch)){return false;}
+                    break;
+                case NEED_UNWRAP:
+                    if(!unwrap(ch)){return false;}
+                    break;
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                default: // FINISHED or NOT_HANDSHAKING
+                    handshaking = false;
+            }
+        }
+        return flush(ch);
+    }
+
+    /**
+     * Reads from the socket and decrypts what it can into dst. Returns the
+     * number of bytes added to dst, or -1 once the server has closed the
+     * connection.
+     */
+    public int read(SocketChannel ch, ByteBuffer dst) throws IOException {
+        int before = dst.position();
+        if(drain(dst)){return dst.position() - before;}
+        int n = ch.read(netIn);
+        if(n < 0 && netIn.position() == 0){return -1;}
+        while(netIn.position() > 0){
+            netIn.flip();
+            SSLEngineResult r;
+            try{
+                r = engine.unwrap(netIn, appIn);
+            }finally{
+                netIn.compact();
+            }
+            if(r.getHandshakeStatus() == HandshakeStatus.NEED_TASK){runTasks();}
+            if(r.getHandshakeStatus() == HandshakeStatus.NEED_WRAP){ // e.g. a TLS 1.3 key update
+                wrap(NOTHING, 0, 0);
+                flush(ch);
+            }
+            if(r.getStatus() == Status.CLOSED){
+                drain(dst);
+                return dst.position() > before ? dst.position() - before : -1;
+            }
+            if(r.getStatus() == Status.BUFFER_UNDERFLOW){
+                netIn = ensure(netIn, engine.getSession().getPacketBufferSize());
+                break; // the rest of the record is still to come
+            }
+            if(r.getStatus() == Status.BUFFER_OVERFLOW && appIn.position() == 0){
+                appIn = ensure(appIn, engine.getSession().getApplicationBufferSize());
+            }
+            if(drain(dst)){break;}
+            if(r.bytesConsumed() == 0 && r.bytesProduced() == 0 && r.getStatus() == Status.OK){break;}
+        }
+        if(n < 0 && dst.position() == before){return -1;}
+        return dst.position() - before;
+    }
+
+    /**
+     * Encrypts everything in srcs[off, off+len) and writes it. Returns false
+     * if the socket could not take it all; the rest is kept and goes first
+     * on the next write or flush.
+     */
+    public boolean write(SocketChannel ch, ByteBuffer[] srcs, int off, int len) throws IOException {
+        while(srcs[off + len - 1].hasRemaining()){
+            if(!flush(ch)){return false;}
+            wrap(srcs, off, len);
+        }
+        return flush(ch);
+    }
+
+    /**
+     * writes the encrypted bytes still waiting; false if some are left
+     */
+    public boolean flush(SocketChannel ch) throws IOException {
+        if(netOut.position() == 0){return true;}
+        netOut.flip();
+        try{
+            ch.write(netOut);
+            return !netOut.hasRemaining();
+        }finally{
+            netOut.compact();
+        }
+    }
+
+    /**
+     * sends a close_notify if the socket will take it, and gives the
+     * buffers back to the pool
+     */
+    public void close(SocketChannel ch){
+        try{
+            engine.closeOutbound();
+            if(ch != null && ch.isOpen() && !handshaking){
+                wrap(NOTHING, 0, 0);
+                flush(ch);
+            }
+        }catch(IOException e){
+            // closing anyway
+        }
+        POOL.give(netIn);
+        POOL.give(netOut);
+        POOL.give(appIn);
+        netIn = netOut = appIn = EMPTY;
+    }
+
+    private void wrap(ByteBuffer[] srcs, int off, int len) throws IOException {
+        SSLEngineResult r = engine.wrap(srcs, off, len, netOut);
+        if(r.getStatus() == Status.BUFFER_OVERFLOW && netOut.position() == 0){ // else flushing makes room
+            netOut = ensure(netOut, engine.getSession().getPacketBufferSize());
+        }else if(r.getStatus() == Status.CLOSED && len > 0 && srcs[off + len - 1].hasRemaining()){
+            throw new SSLException("TLS connection closed");
+        }
+        if(r.getHandshakeStatus() == HandshakeStatus.NEED_TASK){runTasks();}
+    }
+
+    /**
+     * One unwrap during the handshake, reading from the socket if there is
+     * nothing to unwrap. Returns false if it needs more from the socket.
+     */
+    private boolean unwrap(SocketChannel ch) throws IOException {
+        if(netIn.position() == 0 && ch.read(netIn) < 0){
+            throw new EOFException("Connection closed during TLS handshake");
+        }
+        netIn.flip();
+        SSLEngineResult r;
+        try{
+            r = engine.unwrap(netIn, appIn);
+        }finally{
+            netIn.compact();
+        }
+        switch(r.getStatus()){
+            case BUFFER_UNDERFLOW:
+                netIn = ensure(netIn, engine.getSession().getPacketBufferSize());
+                int n = ch.read(netIn);
+                if(n < 0){throw new EOFException("Connection closed during TLS handshake");}
+                return n > 0;
+            case BUFFER_OVERFLOW:
+                appIn = ensure(appIn, appIn.position() + engine.getSession().getApplicationBufferSize());
+                return true;
+            case CLOSED:
+                throw new SSLException("TLS closed during handshake");
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * the engine's certificate checks and key exchange work; run here, as
+     * the handshake can't go on without them
+     */
+    private void runTasks(){
+        Runnable task;
+        while((task = engine.getDelegatedTask()) != null){
+            task.run();
+        }
+    }
+
+    /**
+     * moves decrypted bytes into dst; true if some are left over
+     */
+    private boolean drain(ByteBuffer dst){
+        if(appIn.position() == 0){return false;}
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        appIn.compact();
+        return appIn.position() > 0;
+    }
+
+    /**
+     * b, or a larger buffer with the same contents if b holds less than
+     * capacity, for records bigger than the pool's (these are not pooled)
+     */
+    private static ByteBuffer ensure(ByteBuffer b, int capacity){
+        if(b.capacity() >= capacity){return b;}
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        b.flip();
+        bigger.put(b);
+        POOL.give(b);
+        return bigger;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Loopback checks of TLS and SASL: an IrcClient talking to a FakeIrcServer
+ * over TLS, with a self-signed key store made by keytool for the run. Like
+ * TransportTest it is a plain main() that prints what failed and exits with
+ * the number of failures.
+ *
+ *  - the session logs in over TLS with SASL PLAIN, and a wrong password
+ *    fails the login
+ *  - the first connection makes a new TLS session; when the server drops
+ *    it, the session reconnects, logs in again and resumes the TLS session
+ *
+ * Run with: java TlsTest (keytool must be in the JDK running it)
+ */
+public class TlsTest implements IrcListener {
+    private static final long WAIT_MILLIS = 15000;
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static int failures = 0;
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("tls-test");
+        Path keyStore = dir.resolve("test.p12");
+        FakeIrcServer server = null;
+        IrcClient client = new IrcClient();
+        TlsTest t = new TlsTest();
+        client.addListener(t);
+        try{
+            makeKeyStore(keyStore);
+            SSLContext tls = TlsLayer.context(keyStore, PASSWORD);
+            server = new FakeIrcServer(0, tls);
+            server.addAccount("tester", "secret");
+
+            IrcSession s = client.connect("localhost", server.getPort(), tls, Sasl.plain("tester", "secret"), "tester", "TLS Test");
+            sentUntil(server, "AUTHENTICATE PLAIN", "SASL PLAIN asked for");
+            t.skipUntil("loggedIn tester", "logged in over TLS");
+            check(s.isSecure(), "session is secure");
+            check(!s.isResumed(), "first connection makes a new TLS session");
+
+            server.disconnectAll();
+            t.skipUntil("reconnecting tester", "reconnecting after the server dropped us");
+            sentUntil(server, "AUTHENTICATE PLAIN", "SASL PLAIN again on reconnecting");
+            t.skipUntil("loggedIn tester", "logged in again");
+            check(s.isResumed(), "reconnection resumes the TLS session");
+
+            client.connect("localhost", server.getPort(), tls, Sasl.plain("tester", "wrong"), "intruder", "TLS Test");
+            t.skipUntil("loginFailed intruder", "wrong password fails the login");
+        }finally{
+            client.shutdown();
+            if(server != null){server.close();}
+            Files.deleteIfExists(keyStore);
+            Files.deleteIfExists(dir);
+        }
+        System.out.println(failures == 0 ? "TlsTest: all passed" : "TlsTest: " + failures + " failed");
+        System.exit(failures);
+    }
+
+    /**
+     * a self-signed key for localhost, as TlsLayer.context describes
+     */
+    private static void makeKeyStore(Path keyStore) throws IOException, InterruptedException {
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process p = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "irc", "-keyalg", "EC",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+            "-keystore", keyStore.toString(), "-storetype", "PKCS12",
+            "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+            .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+        if(p.waitFor() != 0){
+            throw new IOException("keytool failed making " + keyStore);
+        }
+    }
+
+    public void loggedIn(IrcSession s){
+        events.add("loggedIn " + s.nick());
+    }
+
+    public void loginFailed(IrcSession s, String reason){
+        events.add("loginFailed " + s.nick() + " " + reason);
+    }
+
+    public void reconnecting(IrcSession s, IOException cause, long delayMillis){
+        events.add("reconnecting " + s.nick());
+    }
+
+    /**
+     * skips events until one starting with the text arrives
+     */
+    private void skipUntil(String text, String what) throws InterruptedException {
+        String got;
+        while((got = events.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)) != null){
+            if(got.startsWith(text)){return;}
+        }
+        check(false, what);
+    }
+
+    /**
+     * skips the lines the server received until one starting with the text
+     */
+    private static void sentUntil(FakeIrcServer server, String text, String what) throws InterruptedException {
+        String got;
+        while((got = server.nextReceived(WAIT_MILLIS)) != null){
+            if(got.startsWith(text)){return;}
+        }
+        check(false, what);
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok){
+            failures++;
+            System.out.println("FAILED " + what);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Server traffic for FakeIrcServer.replay: recorded lines read from a file,
+ * or synthetic bursts of the kinds that make a client lag, such as channel
+ * floods, netsplits and big NAMES and LIST replies.
+ *
+ * Lines may contain TIME, which replay swaps for System.nanoTime() as the
+ * line is sent, so a client on the same machine can work out each line's
+ * latency.
+ */
+public class TrafficGenerator {
+    public static final String TIME = "$TIME";
+    private static final int NAMES_PER_LINE = 400; // characters of names per 353, as servers send them
+
+    /**
+     * the lines of a recorded session (one raw line per line; blank lines
+     * and lines starting with # are skipped)
+     */
+    public static List<String> recorded(Path file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)){
+            if(!line.isEmpty() && !line.startsWith("#")){lines.add(line);}
+        }
+        return lines;
+    }
+
+    /**
+     * count channel messages from the given number of different nicks, each
+     * stamped with the time it is sent
+     */
+    public static List<String> flood(String channel, int nicks, int count){
+        List<String> lines = new ArrayList<String>(count);
+        for(int i = 0; i < count; i++){
+            String nick = "user" + (i % nicks);
+            lines.add(":" + nick + "!" + nick + "@flood.example PRIVMSG " + channel + " :" + TIME + " message " + i);
+        }
+        return lines;
+    }
+
+    /**
+     * a netsplit: users of the channel quit together, then join back as
+     * the servers reconnect
+     */
+    public static List<String> netsplit(String channel, int users){
+        List<String> lines = new ArrayList<String>(users * 2);
+        for(int i = 0; i < users; i++){
+            lines.add(":user" + i + "!u@split.example QUIT :hub.example leaf.example");
+        }
+        for(int i = 0; i < users; i++){
+            lines.add(":user" + i + "!u@split.example JOIN " + channel);
+        }
+        return lines;
+    }
+
+    /**
+     * the NAMES reply (353s then 366) for a channel with the given number
+     * of users, a few of them opped or voiced
+     */
+    public static List<String> namesBurst(String me, String channel, int users){
+        List<String> lines = new ArrayList<String>();
+        String start = ":" + FakeIrcServer.NAME + " 353 " + me + " = " + channel + " :";
+        StringBuilder names = new StringBuilder();
+        for(int i = 0; i < users; i++){
+            if(names.length() > 0){names.append(' ');}
+            if(i % 50 == 0){names.append('@');}
+            else if(i % 20 == 0){names.append('+');}
+            names.append("user").append(i);
+            if(names.length() >= NAMES_PER_LINE){
+                lines.add(start + names);
+                names.setLength(0);
+            }
+        }
+        if(names.length() > 0){lines.add(start + names);}
+        lines.add(":" + FakeIrcServer.NAME + " 366 " + me + " " + channel + " :End of /NAMES list.");
+        return lines;
+    }
+
+    /**
+     * the LIST reply (321, a 322 per channel, 323) for a network with the
+     * given number of channels
+     */
+    public static List<String> listBurst(String me, int channels){
+        List<String> lines = new ArrayList<String>(channels + 2);
+        Random random = new Random(channels);
+        lines.add(":" + FakeIrcServer.NAME + " 321 " + me + " Channel :Users  Name");
+        for(int i = 0; i < channels; i++){
+            int users = 1 + (int)Math.pow(random.nextDouble(), 4) * 5000;
+            lines.add(":" + FakeIrcServer.NAME + " 322 " + me + " #channel" + i + " " + users
+                      + " :[+nt] topic of channel " + i);
+        }
+        lines.add(":" + FakeIrcServer.NAME + " 323 " + me + " :End of /LIST");
+        return lines;
+    }
+}
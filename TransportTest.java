@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loopback checks of the transport: an IrcConnection on an IrcEventLoop,
+ * talking to an in-process FakeIrcServer. Like ParserTest it is a plain
+ * main() that prints what failed and exits with the number of failures.
+ *
+ *  - lines queued before the connection is registered go out once it is
+ *    up, and the login they carry is answered
+ *  - a line whose CR/LF (or middle) arrives in a later read is put back
+ *    together
+ *  - a line too long for the read buffer is dropped, and the lines after
+ *    it still arrive
+ *  - a handler that throws loses only its own line
+ *
+ * Run with: java TransportTest
+ */
+public class TransportTest implements ConnectionHandler {
+    private static final long WAIT_MILLIS = 5000;
+    private static int failures = 0;
+
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+
+    public static void main(String[] args) throws Exception {
+        FakeIrcServer server = new FakeIrcServer(0);
+        IrcEventLoop loop = new IrcEventLoop("transport-test");
+        TransportTest t = new TransportTest();
+        try{
+            IrcConnection c = new IrcConnection("127.0.0.1", server.getPort(), t);
+            c.send("NICK tester"); // queued before there is a connection
+            c.send("USER tester 0 unused :Transport Test");
+            check(c.queueDepth() == 2, "lines queued before registering: " + c.queueDepth());
+            loop.register(c);
+            check(t.connected.await(WAIT_MILLIS, TimeUnit.MILLISECONDS), "connected");
+            check("NICK tester".equals(server.nextReceived(WAIT_MILLIS)), "queued NICK sent first");
+            check("USER tester 0 unused :Transport Test".equals(server.nextReceived(WAIT_MILLIS)), "queued USER sent next");
+            t.expect(":" + FakeIrcServer.NAME + " 001 tester :Welcome to the fake IRC network tester", "welcome (001)");
+            t.skipUntil(" 004 ", "login complete (004)");
+
+            server.writeRaw(":fake.irc NOTICE tester :split before LF\r");
+            Thread.sleep(200);
+            server.writeRaw("\n:fake.irc NOTI");
+            Thread.sleep(200);
+            server.writeRaw("CE tester :split in the middle\r\n");
+            t.expect(":fake.irc NOTICE tester :split before LF", "line with its LF in the next read");
+            t.expect(":fake.irc NOTICE tester :split in the middle", "line split across reads");
+
+            StringBuilder huge = new StringBuilder(":someone!u@h PRIVMSG tester :");
+            for(int i = 0; i < 40000; i++){huge.append('a');}
+            server.writeRaw(huge + "\r\n:fake.irc NOTICE tester :after the long line\r\n");
+            t.expect(":fake.irc NOTICE tester :after the long line", "over-long line dropped, the next one kept");
+
+            server.writeRaw(":fake.irc NOTICE tester :boom\r\n:fake.irc NOTICE tester :after the failure\r\n");
+            t.expect(":fake.irc NOTICE tester :after the failure", "a throwing handler loses only its line");
+
+            c.send("QUIT :done");
+            c.close();
+            check("QUIT :done".equals(server.nextReceived(WAIT_MILLIS)), "queued QUIT written before closing");
+            check(t.disconnected.await(WAIT_MILLIS, TimeUnit.MILLISECONDS), "disconnected");
+        }finally{
+            loop.shutdown();
+            server.close();
+        }
+        System.out.println(failures == 0 ? "TransportTest: all passed" : "TransportTest: " + failures + " failed");
+        System.exit(failures);
+    }
+
+    public void connected(IrcConnection c){
+        connected.countDown();
+    }
+
+    public void lineReceived(IrcConnection c, IrcMessage msg){
+        if(msg.paramEquals(1, "boom")){
+            throw new IllegalStateException("handler failed on purpose");
+        }
+        lines.add(msg.toString());
+    }
+
+    public void disconnected(IrcConnection c, IOException cause){
+        disconnected.countDown();
+    }
+
+    /**
+     * checks the next line received is the one expected
+     */
+    private void expect(String line, String what) throws InterruptedException {
+        String got = lines.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        check(line.equals(got), what + ": " + (got == null ? "nothing" : abbreviate(got)));
+    }
+
+    /**
+     * skips lines until one containing the text arrives
+     */
+    private void skipUntil(String text, String what) throws InterruptedException {
+        String got;
+        while((got = lines.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)) != null){
+            if(got.contains(text)){return;}
+        }
+        check(false, what);
+    }
+
+    private static String abbreviate(String s){
+        return s.length() > 80 ? s.substring(0, 80) + "... (" + s.length() + " chars)" : s;
+    }
+
+    private static void check(boolean ok, String what){
+        if(!ok){
+            failures++;
+            System.out.println("FAILED " + what);
+        }
+    }
+}